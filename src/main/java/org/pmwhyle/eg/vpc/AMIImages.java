@@ -1,23 +1,26 @@
 package org.pmwhyle.eg.vpc;
 
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeImagesRequest;
-import com.amazonaws.services.ec2.model.Filter;
-import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.*;
 import org.joda.time.DateTime;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * The named types of images used by this VPC, provides filters
- * for finding the image ids.
+ * for finding the image ids. ECS instances use an image baked for the
+ * environment by BakeAmi in preference, when there is one.
  */
 enum AMIImages {
 
     ECSImage("*amzn-ami-*-amazon-ecs-optimized*"),
     NATImage("*amzn-ami-vpc-nat*");
 
+    static final Tag BAKED_TAG = new Tag("eg-image").withValue("baked-ecs");
+
     public final String imageName;
 
     AMIImages(String imageName) {
@@ -38,6 +41,38 @@ enum AMIImages {
         return imageId.orElseThrow(() -> new NoImageFoundException(image.toString()));
     }
 
+    /**
+     * The newest image baked for the environment identified by the given
+     * tags, if there is one, otherwise the newest public ECS image.
+     */
+    static String ecsImageIdFor(AmazonEC2Client ec2Client, Tag... tags) {
+        Optional<String> baked = bakedImages(ec2Client, tags).stream()
+                .map(Image::getImageId)
+                .findFirst();
+        return baked.orElseGet(() -> imageIdFor(ec2Client, ECSImage));
+    }
+
+    /**
+     * Images baked for the environment identified by the given tags, newest
+     * first.
+     */
+    static List<Image> bakedImages(AmazonEC2Client ec2Client, Tag... tags) {
+        List<Filter> filters = Arrays.stream(tags)
+                .filter(tag -> "eg-id".equals(tag.getKey()))
+                .map(CreateVpc::getFilterForTag)
+                .collect(Collectors.toList());
+        filters.add(CreateVpc.getFilterForTag(BAKED_TAG));
+        return ec2Client.describeImages(
+                new DescribeImagesRequest()
+                        .withOwners("self")
+                        .withFilters(filters))
+                .getImages()
+                .stream()
+                .filter(i -> ImageState.Available.toString().equals(i.getState()))
+                .sorted(AMIImages::reverseCompareCreation)
+                .collect(Collectors.toList());
+    }
+
     private Filter getFilter() {
         return new Filter("name").withValues(imageName);
     }
@@ -0,0 +1,411 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the AWS traffic of a run - each attempt at each call, with its
+ * response or error and how long it took - to a gzipped file of JSON lines,
+ * given --record=&lt;file&gt;; and plays such a file back, given
+ * --replay=&lt;file&gt;, to a run with no network.
+ * <p>
+ * Replay serves the recorded responses from a local HTTP server that the
+ * clients are pointed at, each call getting the next response recorded for
+ * its operation - or the last, once those run out, as polling may call more
+ * often - after the time it took when recorded, scaled by --replay-scale
+ * (1; 0 for no delay). The SDK parses them, retries errors and throttling,
+ * and fails as it did against AWS. The few values a run makes up locally
+ * that AWS echoes back, such as its lease owner, are recorded too, and a
+ * replayed run's private key file is written in a directory of its own
+ * rather than ~/.ssh.
+ * <p>
+ * The private key material that CreateKeyPair returns is not recorded.
+ */
+class ApiRecording {
+
+    private static final String LOCAL = "local";
+    private static final String TARGET_HEADER = "X-Amz-Target";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static Recorder recorder;
+    private static Replayer replayer;
+
+    private ApiRecording() {
+    }
+
+    /**
+     * Record the calls made through clients created from now on.
+     */
+    static synchronized void record(File file) {
+        try {
+            recorder = new Recorder(file);
+        } catch (IOException e) {
+            throw new RecordingException("Couldn't write a recording to " + file, e);
+        }
+    }
+
+    /**
+     * Serve the recorded calls to clients created from now on.
+     */
+    static synchronized void replay(File file, double scale) {
+        try {
+            replayer = new Replayer(file, scale);
+        } catch (IOException e) {
+            throw new RecordingException("Couldn't replay " + file, e);
+        }
+        // signed with, but never checked
+        System.setProperty("aws.accessKeyId", "replay");
+        System.setProperty("aws.secretKey", "replay");
+    }
+
+    /**
+     * Record the calls made through the client, or point it at the replay,
+     * if either was started.
+     */
+    static synchronized <T extends AmazonWebServiceClient> T hooked(T client) {
+        if (recorder != null)
+            client.addRequestHandler(recorder.handlerFor(client.getServiceName()));
+        if (replayer != null)
+            client.setEndpoint(replayer.endpointFor(client.getServiceName()));
+        return client;
+    }
+
+    /**
+     * A value made up by the run itself, recorded or replayed alongside the
+     * calls it is sent in.
+     */
+    static String local(String name, Supplier<String> live) {
+        Replayer replaying;
+        Recorder recording;
+        synchronized (ApiRecording.class) {
+            replaying = replayer;
+            recording = recorder;
+        }
+        if (replaying != null)
+            return replaying.next(LOCAL, name).map(record -> record.path("body").asText()).orElseGet(live);
+        String value = live.get();
+        if (recording != null) {
+            ObjectNode record = recording.record(LOCAL, name, 0);
+            record.put("body", value);
+            recording.write(record);
+        }
+        return value;
+    }
+
+    /**
+     * The directory the run keeps its private keys under, a temporary one
+     * when replaying.
+     */
+    static synchronized File home() {
+        return replayer != null ? replayer.home : new File(System.getProperty("user.home"));
+    }
+
+    /**
+     * Finish the recording, or stop the replay.
+     */
+    static synchronized void finish() {
+        if (recorder != null)
+            recorder.close();
+        if (replayer != null)
+            replayer.close();
+        recorder = null;
+        replayer = null;
+    }
+
+    /**
+     * The operation an HTTP request is for, whether named by its target, for
+     * JSON protocols, or its action.
+     */
+    private static String operationOf(String target, String action) {
+        return target != null ? target.substring(target.lastIndexOf('.') + 1) : action;
+    }
+
+    private static class Recorder {
+        private final Writer writer;
+        private final long startNanos = System.nanoTime();
+
+        Recorder(File file) throws IOException {
+            writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file), true), StandardCharsets.UTF_8);
+        }
+
+        RequestHandler2 handlerFor(String service) {
+            return new RecordingHandler(this, service);
+        }
+
+        ObjectNode record(String service, String operation, long millis) {
+            ObjectNode record = mapper.createObjectNode();
+            record.put("t", (System.nanoTime() - startNanos) / 1000000);
+            record.put("service", service);
+            record.put("operation", operation);
+            record.put("millis", millis);
+            return record;
+        }
+
+        synchronized void write(ObjectNode record) {
+            try {
+                writer.write(mapper.writeValueAsString(record));
+                writer.write('\n');
+                writer.flush();  // so that a run that dies still leaves what it did
+            } catch (IOException e) {
+                throw new RecordingException("Couldn't write the recording", e);
+            }
+        }
+
+        synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.print("\nCouldn't finish the recording: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class RecordingHandler extends RequestHandler2 {
+        private final Recorder recorder;
+        private final String service;
+        private final Map<Request<?>, Long> started = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final Map<Request<?>, ObjectNode> responses = Collections.synchronizedMap(new IdentityHashMap<>());
+
+        RecordingHandler(Recorder recorder, String service) {
+            this.recorder = recorder;
+            this.service = service;
+        }
+
+        @Override
+        public void beforeAttempt(HandlerBeforeAttemptContext context) {
+            started.put(context.getRequest(), System.nanoTime());
+        }
+
+        @Override
+        public HttpResponse beforeUnmarshalling(Request<?> request, HttpResponse httpResponse) {
+            if (httpResponse.getContent() == null)
+                return httpResponse;
+            try {
+                byte[] content = ByteStreams.toByteArray(httpResponse.getContent());
+                httpResponse.setContent(new ByteArrayInputStream(content));
+                ObjectNode response = mapper.createObjectNode();
+                response.put("status", httpResponse.getStatusCode());
+                response.put("contentType", httpResponse.getHeader("Content-Type"));
+                response.put("body", redacted(new String(content, StandardCharsets.UTF_8)));
+                responses.put(request, response);
+            } catch (IOException e) {
+                throw new RecordingException("Couldn't read the response to record it", e);
+            }
+            return httpResponse;
+        }
+
+        @Override
+        public void afterAttempt(HandlerAfterAttemptContext context) {
+            Request<?> request = context.getRequest();
+            Long start = started.remove(request);
+            ObjectNode response = responses.remove(request);
+            ObjectNode record = recorder.record(service, operationOf(request), start == null ? 0 : (System.nanoTime() - start) / 1000000);
+            record.set("request", requestOf(request));
+            Exception exception = context.getException();
+            if (exception instanceof AmazonServiceException) {
+                AmazonServiceException ase = (AmazonServiceException) exception;
+                record.put("status", ase.getStatusCode());
+                record.put("json", request.getHeaders().containsKey(TARGET_HEADER));
+                ObjectNode error = record.putObject("error");
+                error.put("code", ase.getErrorCode());
+                error.put("message", ase.getErrorMessage());
+                error.put("type", ase.getErrorType() == AmazonServiceException.ErrorType.Service ? "Receiver" : "Sender");
+                error.put("requestId", ase.getRequestId());
+            } else if (exception != null) {
+                record.put("failure", exception.toString());
+            } else if (response != null) {
+                record.setAll(response);
+            }
+            recorder.write(record);
+        }
+
+        private static String operationOf(Request<?> request) {
+            List<String> action = request.getParameters().get("Action");
+            return ApiRecording.operationOf(request.getHeaders().get(TARGET_HEADER),
+                    action == null || action.isEmpty()
+                            ? request.getOriginalRequest().getClass().getSimpleName().replaceFirst("Request$", "")
+                            : action.get(0));
+        }
+
+        private static JsonNode requestOf(Request<?> request) {
+            if (!request.getParameters().isEmpty())
+                return mapper.valueToTree(request.getParameters());
+            InputStream content = request.getContent();
+            if (content == null || !content.markSupported())
+                return mapper.createObjectNode();
+            try {
+                content.mark(Integer.MAX_VALUE);
+                byte[] body = ByteStreams.toByteArray(content);
+                content.reset();
+                return mapper.readTree(body);
+            } catch (IOException e) {
+                return mapper.createObjectNode();
+            }
+        }
+
+        private static String redacted(String body) {
+            return body.replaceAll("<keyMaterial>[^<]*</keyMaterial>", "<keyMaterial>not recorded</keyMaterial>");
+        }
+    }
+
+    private static class Replayer {
+        private final Map<String, Deque<JsonNode>> recorded = new HashMap<>();
+        private final Map<String, JsonNode> last = new HashMap<>();
+        private final double scale;
+        private final HttpServer server;
+        private final File home;
+
+        Replayer(File file, double scale) throws IOException {
+            this.scale = scale;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonNode record = mapper.readTree(line);
+                    recorded.computeIfAbsent(keyOf(record.path("service").asText(), record.path("operation").asText()), key -> new ArrayDeque<>())
+                            .add(record);
+                }
+            } catch (EOFException e) {
+                // a recording cut short by the run dying; replay what there is
+            }
+            home = Files.createTempDirectory("eg-replay").toFile();
+            if (!new File(home, ".ssh").mkdirs())
+                throw new IOException("Couldn't create " + home + "/.ssh");
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "replay");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.createContext("/", this::serve);
+            server.start();
+        }
+
+        String endpointFor(String service) {
+            return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/" + service + "/";
+        }
+
+        synchronized Optional<JsonNode> next(String service, String operation) {
+            String key = keyOf(service, operation);
+            JsonNode record = recorded.getOrDefault(key, new ArrayDeque<>()).poll();
+            if (record != null)
+                last.put(key, record);
+            return Optional.ofNullable(record != null ? record : last.get(key));
+        }
+
+        private void serve(HttpExchange exchange) throws IOException {
+            try {
+                String service = exchange.getRequestURI().getPath().split("/")[1];
+                String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+                String target = exchange.getRequestHeaders().getFirst(TARGET_HEADER);
+                String operation = operationOf(target, formValue(body, "Action"));
+                Optional<JsonNode> found = next(service, operation);
+                if (!found.isPresent()) {
+                    respond(exchange, 400, errorBody(service, target != null, "NotRecorded", operation + " wasn't recorded", "Sender"), target);
+                    return;
+                }
+                JsonNode record = found.get();
+                Thread.sleep((long) (record.path("millis").asLong() * scale));
+                if (record.has("failure")) {
+                    exchange.close();  // no response at all, as the SDK saw
+                } else if (record.has("error")) {
+                    JsonNode error = record.get("error");
+                    respond(exchange, record.path("status").asInt(400),
+                            errorBody(service, record.path("json").asBoolean(), error.path("code").asText(), error.path("message").asText(), error.path("type").asText()),
+                            target);
+                } else {
+                    exchange.getResponseHeaders().add("Content-Type", record.path("contentType").asText("text/xml"));
+                    respond(exchange, record.path("status").asInt(200), record.path("body").asText(), null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body, String jsonTarget) throws IOException {
+            if (jsonTarget != null && !exchange.getResponseHeaders().containsKey("Content-Type"))
+                exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.1");
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        /**
+         * An error as the service would have sent it, for the SDK to parse.
+         */
+        private static String errorBody(String service, boolean json, String code, String message, String type) {
+            if (json) {
+                ObjectNode error = mapper.createObjectNode();
+                error.put("__type", code);
+                error.put("message", message);
+                return error.toString();
+            }
+            String escaped = message.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+            if ("ec2".equals(service))
+                return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response><Errors><Error><Code>" + code + "</Code><Message>" +
+                        escaped + "</Message></Error></Errors><RequestID>replay</RequestID></Response>";
+            return "<ErrorResponse><Error><Type>" + type + "</Type><Code>" + code + "</Code><Message>" +
+                    escaped + "</Message></Error><RequestId>replay</RequestId></ErrorResponse>";
+        }
+
+        private static String formValue(String body, String name) throws UnsupportedEncodingException {
+            for (String pair : body.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && URLDecoder.decode(pair.substring(0, equals), "UTF-8").equals(name))
+                    return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            }
+            return null;
+        }
+
+        private static String keyOf(String service, String operation) {
+            return service + "/" + operation;
+        }
+
+        /**
+         * Stop serving, and remove the temporary home, with the key files
+         * the replayed run wrote there.
+         */
+        void close() {
+            server.stop(0);
+            try (Stream<Path> paths = Files.walk(home.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            } catch (IOException e) {
+                System.err.print("\nCouldn't remove " + home + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static class RecordingException extends RuntimeException {
+        RecordingException(String message, IOException e) {
+            super("\n" + message + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.*;
+import com.amazonaws.services.ecs.model.ClusterNotFoundException;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.pmwhyle.eg.vpc.AMIImages.BAKED_TAG;
+import static org.pmwhyle.eg.vpc.CreateVpc.PRIVATE_TAG;
+import static org.pmwhyle.eg.vpc.CreateVpc.pause;
+
+/**
+ * Bakes an image for the environment's ECS instances: a builder instance
+ * is launched from the public ECS image into a private subnet, pulls the
+ * configured container images with the configured user data tuning, and
+ * shuts itself down once its ECS agent state has been cleared. An image is
+ * then made from it and tagged, and the builder terminated. ECS instances
+ * launched later use the newest such image, so start with their images
+ * already pulled.
+ * <p>
+ * The builder's agent is pointed at a cluster that doesn't exist, so that
+ * it never takes tasks.
+ */
+class BakeAmi {
+
+    static final Tag BUILDER_TAG = new Tag("eg-access").withValue("image-builder");
+
+    private static final String[] CLEAN_UP = {
+            "stop ecs",
+            "rm -rf /var/lib/ecs/data/*",
+            "rm -f /etc/ecs/ecs.config /var/lib/cloud/eg-configured",
+            "sed -i '/" + UserData.MARKER + "$/d' /etc/sysconfig/docker /etc/sysconfig/docker-storage",
+            "shutdown -h now"};
+
+    private final String id;
+    private final Tag idTag;
+    private final Options options;
+    private final Lease lease;
+
+    BakeAmi(String id, Options options, Lease lease) {
+        this.id = id;
+        this.idTag = new Tag("eg-id").withValue(id);
+        this.options = options;
+        this.lease = lease;
+    }
+
+    /**
+     * Bake an image, returning its id.
+     */
+    String execute() {
+        List<String> images = options.getList("bake-images");
+        if (images.isEmpty())
+            throw new Options.BadOptionException("bake-images", "");
+
+        try {
+            lease.onCluster(Clients.ecs());
+        } catch (ClusterNotFoundException e) {
+            throw new NoEnvironmentToBakeInException(id);
+        }
+        String vpcId = NewCreateVpc.getExistingVpcId(Clients.ec2(), idTag)
+                .orElseThrow(() -> new NoEnvironmentToBakeInException(id));
+        SubnetLayout subnets = NewCreateSubnet.getSubnetLayout(Clients.ec2(), vpcId, Optional.empty(), idTag);
+        String privateSecurityGroup = NewCreateSecurityGroups.getPrivateSecurityGroup(Clients.ec2(), vpcId, idTag, PRIVATE_TAG);
+        String keyName = NewCreateKeyPairs.createAndWriteKeyPair(Clients.ec2(), id);
+
+        UserData userData = UserData.forCluster(id + "-bake", options);
+        images.forEach(userData::withPrePull);
+        for (String command : CLEAN_UP)
+            userData.withScript(command);
+
+        String builderId = Trace.step("Launching image builder", () -> launchBuilder(userData, subnets.privateSubnets().get(0), privateSecurityGroup, keyName));
+        try {
+            Trace.step("Pulling images", () -> awaitBuilderState(builderId, InstanceStateName.Stopped));
+            String imageId = Trace.step("Creating image", () -> createImage(builderId));
+            Trace.step("Deregistering old images", () -> deregisterImages(Clients.ec2(), options.getInt("keep-baked", 2), idTag));
+            return imageId;
+        } finally {
+            Trace.step("Terminating image builder", () -> terminateBuilder(builderId));
+        }
+    }
+
+    private String launchBuilder(UserData userData, String subnet, String securityGroup, String keyName) {
+        System.out.print("\nLaunching image builder");
+        Instance builder = Clients.ec2().runInstances(
+                new RunInstancesRequest()
+                        .withInstanceType(InstanceType.T2Micro)
+                        .withKeyName(keyName)
+                        .withMinCount(1)
+                        .withMaxCount(1)
+                        .withImageId(AMIImages.imageIdFor(Clients.ec2(), AMIImages.ECSImage))
+                        .withClientToken(ClientTokens.unique())
+                        .withInstanceInitiatedShutdownBehavior(ShutdownBehavior.Stop)
+                        .withUserData(userData.encoded())
+                        .withTagSpecifications(ClientTokens.tagSpecification("instance", idTag, BUILDER_TAG))
+                        .withNetworkInterfaces(
+                                new InstanceNetworkInterfaceSpecification()
+                                        .withAssociatePublicIpAddress(false)
+                                        .withDeviceIndex(0)
+                                        .withSubnetId(subnet)
+                                        .withGroups(securityGroup)))
+                .getReservation()
+                .getInstances()
+                .get(0);
+        return builder.getInstanceId();
+    }
+
+    private void awaitBuilderState(String builderId, InstanceStateName state) {
+        System.out.print("\nPulling images on the builder");
+        long deadline = System.currentTimeMillis() + options.getInt("bake-timeout", 1800) * 1000L;
+        while (!state.toString().equals(stateOf(builderId))) {
+            if (System.currentTimeMillis() > deadline)
+                throw new BakeTimedOutException(builderId, state);
+            pause(10000);
+        }
+    }
+
+    private String stateOf(String instanceId) {
+        return Clients.ec2().describeInstances(
+                new DescribeInstancesRequest()
+                        .withInstanceIds(instanceId))
+                .getReservations().stream()
+                .flatMap(r -> r.getInstances().stream())
+                .map(i -> i.getState().getName())
+                .findFirst()
+                .orElse(null);
+    }
+
+    private String createImage(String builderId) {
+        System.out.print("\nCreating image");
+        String name = id + "-ecs-" + DateTimeFormat.forPattern("yyyyMMdd-HHmmss").print(DateTime.now());
+        String imageId = Clients.ec2().createImage(
+                new CreateImageRequest(builderId, name)
+                        .withDescription("ECS image for " + id + " with pre-pulled container images")
+                        .withTagSpecifications(ClientTokens.tagSpecification("image", idTag, BAKED_TAG)))
+                .getImageId();
+
+        long deadline = System.currentTimeMillis() + options.getInt("bake-timeout", 1800) * 1000L;
+        String state = null;
+        while (!ImageState.Available.toString().equals(state)) {
+            if (ImageState.Failed.toString().equals(state) || System.currentTimeMillis() > deadline)
+                throw new BakeTimedOutException(imageId, ImageState.Available);
+            pause(10000);
+            state = Clients.ec2().describeImages(
+                    new DescribeImagesRequest()
+                            .withImageIds(imageId))
+                    .getImages().stream()
+                    .map(Image::getState)
+                    .findFirst()
+                    .orElse(null);
+        }
+        return imageId;
+    }
+
+    private void terminateBuilder(String builderId) {
+        Clients.ec2().deleteTags(new DeleteTagsRequest().withResources(builderId).withTags(idTag, BUILDER_TAG));
+        Clients.ec2().terminateInstances(new TerminateInstancesRequest().withInstanceIds(builderId));
+    }
+
+    /**
+     * Deregister all but the newest {@code keep} of the images baked for the
+     * environment, deleting their snapshots too.
+     */
+    static void deregisterImages(AmazonEC2Client client, int keep, Tag idTag) {
+        System.out.print("\nDeregistering baked images");
+        AMIImages.bakedImages(client, idTag).stream()
+                .skip(keep)
+                .forEach(image -> {
+                    List<String> snapshotIds = image.getBlockDeviceMappings().stream()
+                            .map(BlockDeviceMapping::getEbs)
+                            .filter(Objects::nonNull)
+                            .map(EbsBlockDevice::getSnapshotId)
+                            .filter(Objects::nonNull)
+                            .collect(Collectors.toList());
+                    client.deregisterImage(new DeregisterImageRequest(image.getImageId()));
+                    snapshotIds.forEach(snapshotId -> client.deleteSnapshot(new DeleteSnapshotRequest(snapshotId)));
+                });
+    }
+
+    private static class NoEnvironmentToBakeInException extends RuntimeException {
+        NoEnvironmentToBakeInException(String id) {
+            super("No VPC could be found for id " + id + " - run create first, as the builder needs its NAT");
+        }
+    }
+
+    private static class BakeTimedOutException extends RuntimeException {
+        BakeTimedOutException(String resourceId, Object state) {
+            super("\n" + resourceId + " didn't become " + state + " in time - check its console output" +
+                    " (or raise --bake-timeout) and try again");
+        }
+    }
+}
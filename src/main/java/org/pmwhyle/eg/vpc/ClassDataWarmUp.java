@@ -0,0 +1,62 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeVpcsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.model.ListContainerInstancesRequest;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.model.ListRolesRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Loads the classes a typical run needs - each client, and what it takes to
+ * sign, marshall and send a request and handle the error - without calling
+ * AWS, so that a class data sharing archive can be dumped when it exits.
+ * Requests go to a local port nothing listens on, and aren't retried.
+ */
+class ClassDataWarmUp {
+
+    private static final String NOWHERE = "http://127.0.0.1:9";
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parse("warm-up", "create");
+        UserData.forCluster("warm-up", options).encoded();
+        new ObjectMapper().writeValueAsString(new RolePolicy());
+
+        BasicAWSCredentials credentials = new BasicAWSCredentials("warm-up", "warm-up");
+        ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxErrorRetry(0)
+                .withConnectionTimeout(500);
+
+        AmazonEC2Client ec2Client = client(new AmazonEC2Client(credentials, configuration));
+        AmazonIdentityManagementClient iamClient = client(new AmazonIdentityManagementClient(credentials, configuration));
+        AmazonECSClient ecsClient = client(new AmazonECSClient(credentials, configuration));
+
+        call(() -> ec2Client.describeVpcs(new DescribeVpcsRequest().withFilters(CreateVpc.getFilterForTag(new Tag("eg-id", "warm-up")))));
+        call(() -> ec2Client.createTags(new CreateTagsRequest().withResources("vpc-0").withTags(new Tag("eg-id", "warm-up"))));
+        call(() -> iamClient.listRoles(new ListRolesRequest().withPathPrefix(NewCreateProfiles.pathFor("warm-up"))));
+        call(() -> ecsClient.listContainerInstances(new ListContainerInstancesRequest().withCluster("warm-up")));
+    }
+
+    private static <T extends AmazonWebServiceClient> T client(T client) {
+        client.setEndpoint(NOWHERE);
+        client.setSignerRegionOverride("us-east-1");
+        return client;
+    }
+
+    private static void call(Runnable request) {
+        try {
+            request.run();
+        } catch (AmazonClientException expected) {
+            // nothing is listening, the classes used to get here are what matter
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Client tokens for the EC2 calls that take one, so that a create is made
+ * at most once however often it is sent - whether the SDK retries it, or a
+ * run dies before tagging what it made and is run again. Sending the same
+ * token again returns what the first call made, with no need to look for it
+ * first.
+ * <p>
+ * A step's token is derived from the id, the VPC, the step and the
+ * availability zone, so is the same on every run for the same VPC and
+ * different for a new one. Only VPCs created since tokens were used are
+ * marked with {@link #TOKENS_TAG}; in others, resources made before then
+ * have no token, so are still looked for by their tags.
+ */
+class ClientTokens {
+
+    static final Tag TOKENS_TAG = new Tag("eg-create").withValue("client-token");
+
+    private static final String MISMATCH = "IdempotentParameterMismatch";
+
+    private final String id;
+    private final String vpcId;
+    private final boolean marked;
+
+    private ClientTokens(String id, String vpcId, boolean marked) {
+        this.id = id;
+        this.vpcId = vpcId;
+        this.marked = marked;
+    }
+
+    static ClientTokens forVpc(String id, String vpcId, Collection<Tag> vpcTags) {
+        return new ClientTokens(id, vpcId, vpcTags.contains(TOKENS_TAG));
+    }
+
+    /**
+     * The token for the step in the zone - or whatever else it is made for,
+     * if not in a zone - if the VPC's resources are made with tokens.
+     */
+    Optional<String> forStep(String step, String zone) {
+        if (!marked)
+            return Optional.empty();
+        return Optional.of(Hashing.sha256()
+                .hashString(id + "|" + vpcId + "|" + step + "|" + zone, StandardCharsets.UTF_8)
+                .toString());
+    }
+
+    /**
+     * A token for a create that is only to be made once, but needn't be
+     * found again by a later run.
+     */
+    static String unique() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * The token was sent before, for a create with different parameters.
+     */
+    static boolean isMismatch(AmazonServiceException ase) {
+        return MISMATCH.equals(ase.getErrorCode());
+    }
+
+    static TagSpecification tagSpecification(String resourceType, Tag... tags) {
+        return new TagSpecification().withResourceType(resourceType).withTags(tags);
+    }
+}
@@ -0,0 +1,72 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatchevents.AmazonCloudWatchEventsClient;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingClient;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+/**
+ * The AWS clients, each created on first use and shared from then on.
+ * Creating a client loads much of its SDK module, so a command only pays
+ * for the services it actually calls.
+ * <p>
+ * Clients are traced, and their calls recorded or replayed, if that was
+ * started before they were first used, and all are held to the run's
+ * {@link Deadline}.
+ */
+class Clients {
+
+    private static final Supplier<AmazonEC2Client> ec2 =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonEC2Client()))));
+
+    private static final Supplier<AmazonIdentityManagementClient> iam =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonIdentityManagementClient()))));
+
+    private static final Supplier<AmazonECSClient> ecs =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonECSClient()))));
+
+    private static final Supplier<AmazonSQSClient> sqs =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonSQSClient()))));
+
+    private static final Supplier<AmazonCloudWatchEventsClient> events =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonCloudWatchEventsClient()))));
+
+    private static final Supplier<AmazonElasticLoadBalancingClient> elb =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonElasticLoadBalancingClient()))));
+
+    private static final Supplier<AmazonCloudWatchClient> cloudWatch =
+            Suppliers.memoize(() -> Deadline.guarded(Trace.traced(ApiRecording.hooked(new AmazonCloudWatchClient()))));
+
+    static AmazonEC2Client ec2() {
+        return ec2.get();
+    }
+
+    static AmazonIdentityManagementClient iam() {
+        return iam.get();
+    }
+
+    static AmazonECSClient ecs() {
+        return ecs.get();
+    }
+
+    static AmazonSQSClient sqs() {
+        return sqs.get();
+    }
+
+    static AmazonCloudWatchEventsClient events() {
+        return events.get();
+    }
+
+    static AmazonElasticLoadBalancingClient elb() {
+        return elb.get();
+    }
+
+    static AmazonCloudWatchClient cloudWatch() {
+        return cloudWatch.get();
+    }
+}
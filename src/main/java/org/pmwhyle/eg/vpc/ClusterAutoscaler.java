@@ -0,0 +1,246 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.PlacementGroup;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.model.*;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.pmwhyle.eg.vpc.CreateVpc.PRIVATE_TAG;
+
+/**
+ * Grows and shrinks the ECS cluster created through CreateVpc, according to
+ * how much of the cluster's registered CPU and memory is reserved by tasks.
+ * <p>
+ * New instances are launched through the same path as those created
+ * initially, into whichever private subnet has fewest instances. Instances
+ * are removed by first draining them through ECS, and only terminating
+ * them once they run no tasks, picking the least used instance from the
+ * availability zone with most instances. If the instances are in a cluster
+ * placement group they are all kept in the one zone that group is in.
+ */
+class ClusterAutoscaler {
+
+    private static final String AZ_ATTRIBUTE = "ecs.availability-zone";
+
+    private final String id;
+    private final Options options;
+    private final Tag idTag;
+    private final ScalingPolicy policy;
+    private final int intervalSeconds;
+    private final UserData userData;
+    private final StorageProfile storage;
+
+    ClusterAutoscaler(String id, Options options) {
+        this.id = id;
+        this.options = options;
+        this.idTag = new Tag("eg-id").withValue(id);
+        this.policy = ScalingPolicy.from(options);
+        this.intervalSeconds = options.getInt("interval", 60);
+        this.userData = UserData.forCluster(id, options);
+        this.storage = StorageProfile.forEcs(options);
+    }
+
+    /**
+     * Evaluate the cluster every interval, until interrupted. An AWS error,
+     * such as throttling, skips that interval rather than ending the run.
+     * <p>
+     * Finding what instances are launched with may create some of it, as
+     * create would, so that is done holding the id's lease, which is then
+     * released so that creates and deletes can run alongside.
+     */
+    void execute() {
+        SubnetLayout subnets;
+        String privateSecurityGroup;
+        String instanceProfileArn;
+        String keyName;
+        try (Lease lease = Lease.forId(id, options)) {
+            lease.onCluster(Clients.ecs());
+            String vpcId = NewCreateVpc.getExistingVpcId(Clients.ec2(), idTag)
+                    .orElseThrow(() -> new NoSuchEnvironmentException(id));
+
+            subnets = NewCreateSubnet.getSubnetLayout(Clients.ec2(), vpcId, Optional.empty(), idTag);
+            privateSecurityGroup = NewCreateSecurityGroups.getPrivateSecurityGroup(Clients.ec2(), vpcId, idTag, PRIVATE_TAG);
+            instanceProfileArn = NewCreateVpc.isTagged(Clients.ec2(), vpcId, CreateVpc.SHARED_IAM_TAG)
+                    ? NewCreateProfiles.sharedInstanceProfile()
+                    : NewCreateProfiles.getInstanceProfile(Clients.iam(), NewCreateProfiles.getEcsRole(Clients.iam(), id), id);
+            keyName = NewCreateKeyPairs.createAndWriteKeyPair(Clients.ec2(), id);
+        } catch (ClusterNotFoundException e) {
+            throw new NoSuchEnvironmentException(id);
+        }
+        RegistryMirror.findAddress(Clients.ec2(), idTag).ifPresent(address -> RegistryMirror.pointAt(userData, address));
+
+        System.out.print("\nAutoscaling cluster " + id + " every " + intervalSeconds + "s");
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                evaluate(subnets, privateSecurityGroup, instanceProfileArn, keyName);
+            } catch (AmazonClientException e) {
+                System.err.print("\nEvaluating cluster " + id + " failed, trying again next interval: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(intervalSeconds * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void evaluate(SubnetLayout subnets, String privateSecurityGroup, String instanceProfileArn, String keyName) {
+        List<Instance> instances = NewCreateInstances.getNonTerminatedInstances(Clients.ec2(), idTag, PRIVATE_TAG).stream()
+                .flatMap(r -> r.getInstances().stream())
+                .collect(Collectors.toList());
+        List<ContainerInstance> containerInstances = getContainerInstances(Clients.ecs(), id);
+
+        terminateDrained(containerInstances);
+
+        List<ContainerInstance> active = containerInstances.stream()
+                .filter(ci -> ContainerInstanceStatus.ACTIVE.toString().equals(ci.getStatus()))
+                .collect(Collectors.toList());
+        int draining = containerInstances.size() - active.size();
+        double reservation = reservation(active);
+        long now = System.currentTimeMillis();
+
+        System.out.print(String.format("\n%d instances (%d draining), reservation %.0f%%", instances.size(), draining, reservation * 100));
+        switch (policy.evaluate(reservation, instances.size() - draining, now)) {
+            case SCALE_OUT:
+                scaleOut(instances, subnets, privateSecurityGroup, instanceProfileArn, keyName);
+                policy.scaled(now);
+                break;
+            case SCALE_IN:
+                if (draining > 0)
+                    break;  // one at a time
+                scaleIn(active);
+                policy.scaled(now);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void scaleOut(List<Instance> instances, SubnetLayout subnets, String privateSecurityGroup, String instanceProfileArn, String keyName) {
+        Map<String, Long> countBySubnet = instances.stream()
+                .collect(Collectors.groupingBy(Instance::getSubnetId, Collectors.counting()));
+        Optional<PlacementGroup> placementGroup = NewCreatePlacementGroups.getExistingPlacementGroup(Clients.ec2(), idTag);
+        String subnet = subnets.privateSubnets().stream()
+                .filter(s -> !NewCreatePlacementGroups.isSingleZone(placementGroup) || countBySubnet.isEmpty() || countBySubnet.containsKey(s))
+                .min(Comparator.comparing(s -> countBySubnet.getOrDefault(s, 0L)))
+                .orElseThrow(() -> new NoSuchEnvironmentException(id));
+        System.out.print("\nScaling out into subnet " + subnet);
+        NewCreateInstances.launchEcsInstance(Clients.ec2(), ClientTokens.unique(), userData, storage, subnet, privateSecurityGroup, instanceProfileArn, keyName, placementGroup, idTag, PRIVATE_TAG);
+    }
+
+    private void scaleIn(List<ContainerInstance> active) {
+        Map<String, List<ContainerInstance>> byZone = active.stream()
+                .collect(Collectors.groupingBy(ClusterAutoscaler::zoneOf));
+        List<ContainerInstance> busiestZone = byZone.values().stream()
+                .max(Comparator.comparing(List::size))
+                .orElse(Collections.emptyList());
+        busiestZone.stream()
+                .min(Comparator.comparing((ContainerInstance ci) -> ci.getRunningTasksCount() + ci.getPendingTasksCount())
+                        .thenComparing(ci -> reserved(ci, "CPU")))
+                .ifPresent(ci -> {
+                    System.out.print("\nScaling in, draining " + ci.getEc2InstanceId());
+                    Clients.ecs().updateContainerInstancesState(
+                            new UpdateContainerInstancesStateRequest()
+                                    .withCluster(id)
+                                    .withContainerInstances(ci.getContainerInstanceArn())
+                                    .withStatus(ContainerInstanceStatus.DRAINING));
+                });
+    }
+
+    private void terminateDrained(List<ContainerInstance> containerInstances) {
+        List<ContainerInstance> drained = containerInstances.stream()
+                .filter(ci -> ContainerInstanceStatus.DRAINING.toString().equals(ci.getStatus()))
+                .filter(ci -> ci.getRunningTasksCount() == 0 && ci.getPendingTasksCount() == 0)
+                .collect(Collectors.toList());
+        if (drained.isEmpty())
+            return;
+
+        List<String> instanceIds = drained.stream()
+                .map(ContainerInstance::getEc2InstanceId)
+                .collect(Collectors.toList());
+        System.out.print("\nTerminating drained instances " + instanceIds);
+        Clients.ec2().deleteTags(new DeleteTagsRequest(instanceIds).withTags(idTag, PRIVATE_TAG));
+        Clients.ec2().terminateInstances(new TerminateInstancesRequest(instanceIds));
+        drained.forEach(ci -> Clients.ecs().deregisterContainerInstance(
+                new DeregisterContainerInstanceRequest()
+                        .withCluster(id)
+                        .withContainerInstance(ci.getContainerInstanceArn())
+                        .withForce(true)));
+        containerInstances.removeAll(drained);
+    }
+
+    static List<ContainerInstance> getContainerInstances(AmazonECSClient client, String id) {
+        List<String> arns = new ArrayList<>();
+        String nextToken = null;
+        do {
+            ListContainerInstancesResult result = client.listContainerInstances(
+                    new ListContainerInstancesRequest()
+                            .withCluster(id)
+                            .withNextToken(nextToken));
+            arns.addAll(result.getContainerInstanceArns());
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+
+        List<ContainerInstance> containerInstances = new ArrayList<>();
+        for (int i = 0; i < arns.size(); i += 100) {
+            containerInstances.addAll(client.describeContainerInstances(
+                    new DescribeContainerInstancesRequest()
+                            .withCluster(id)
+                            .withContainerInstances(arns.subList(i, Math.min(i + 100, arns.size()))))
+                    .getContainerInstances());
+        }
+        return containerInstances;
+    }
+
+    /**
+     * The larger of the reserved fractions of CPU and memory across the given
+     * instances, or zero if there are none.
+     */
+    static double reservation(List<ContainerInstance> instances) {
+        return Math.max(reservation(instances, "CPU"), reservation(instances, "MEMORY"));
+    }
+
+    private static double reservation(List<ContainerInstance> instances, String resource) {
+        long registered = instances.stream()
+                .mapToLong(ci -> valueOf(ci.getRegisteredResources(), resource))
+                .sum();
+        long reserved = instances.stream()
+                .mapToLong(ci -> reserved(ci, resource))
+                .sum();
+        return registered == 0 ? 0.0 : (double) reserved / registered;
+    }
+
+    private static long reserved(ContainerInstance ci, String resource) {
+        return valueOf(ci.getRegisteredResources(), resource) - valueOf(ci.getRemainingResources(), resource);
+    }
+
+    private static long valueOf(List<Resource> resources, String name) {
+        return resources.stream()
+                .filter(r -> name.equals(r.getName()))
+                .mapToLong(Resource::getIntegerValue)
+                .sum();
+    }
+
+    private static String zoneOf(ContainerInstance ci) {
+        return ci.getAttributes().stream()
+                .filter(a -> AZ_ATTRIBUTE.equals(a.getName()))
+                .map(Attribute::getValue)
+                .findFirst()
+                .orElse("");
+    }
+
+    private static class NoSuchEnvironmentException extends RuntimeException {
+        NoSuchEnvironmentException(String id) {
+            super("No VPC, or no private subnets, could be found for id " + id + " - run create first");
+        }
+    }
+}
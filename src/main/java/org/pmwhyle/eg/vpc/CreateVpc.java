@@ -1,15 +1,25 @@
 package org.pmwhyle.eg.vpc;
 
+import com.amazonaws.AbortedException;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.model.ClusterNotFoundException;
 import com.amazonaws.services.ecs.model.CreateClusterRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancer;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.collect.ImmutableMap;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 /**
@@ -19,93 +29,356 @@ public class CreateVpc {
 
     static final Tag PUBLIC_TAG = new Tag("eg-access").withValue("public-access");
     static final Tag PRIVATE_TAG = new Tag("eg-access").withValue("private-access");
+    static final Tag SHARED_IAM_TAG = new Tag("eg-iam").withValue("shared");
+    static final Tag EVENTS_TAG = new Tag("eg-events").withValue("subscribed");
 
-    private final AmazonEC2Client ec2Client;
-    private final AmazonIdentityManagementClient iamClient;
-    private final AmazonECSClient ecsClient;
     private final String id;
     private final Tag idTag;
+    private final Options options;
+    private final Lease lease;
+    private final InstanceEvents events;
 
-    private CreateVpc(String id) {
+    private CreateVpc(String id, Options options, Lease lease, InstanceEvents events) {
         this.id = id;
+        this.options = options;
+        this.lease = lease;
+        this.events = events;
         this.idTag = new Tag("eg-id").withValue(id);
-
-        ec2Client = new AmazonEC2Client();
-        iamClient = new AmazonIdentityManagementClient();
-        ecsClient = new AmazonECSClient();
     }
 
     public static void main(String[] args) {
 
-        if (args.length != 1 && args.length != 2) {
+        Options options = Options.parse(args);
+        List<String> positional = options.positional();
+
+        if (positional.size() != 1 && positional.size() != 2) {
             usage();
             System.exit(22);
         }
 
-        if (args.length > 1 && "delete".equals(args[1])) {
-            DeleteVpc deleteVpc = new DeleteVpc(args[0]);
-            deleteVpc.execute();
-            System.exit(0);
+        String id = positional.get(0);
+        String command = positional.size() > 1 ? positional.get(1) : "create";
+
+        if (options.has("trace"))
+            Trace.start();
+        if (options.has("record"))
+            ApiRecording.record(new File(options.getValue("record", id + "-calls.jsonl.gz")));
+        if (options.has("replay"))
+            ApiRecording.replay(new File(options.getValue("replay", id + "-calls.jsonl.gz")), options.getDouble("replay-scale", 1));
+
+        int status = 0;
+        try {
+            switch (command) {
+                case "create":
+                    startDeadline(options, plan(options));
+                    try (Lease lease = Lease.forId(id, options);
+                         InstanceEvents events = InstanceEvents.forEnvironment(id, options)) {
+                        CreateVpc createVpc = new CreateVpc(id, options, lease, events);
+                        VpcInfo vpcInfo = createVpc.execute();
+                        System.out.println(vpcInfo);
+                        if (!vpcInfo.isReady())
+                            status = 75;
+                    }
+                    break;
+                case "delete":
+                    startDeadline(options, DeleteVpc.plan());
+                    try (Lease lease = Lease.forId(id, options)) {
+                        DeleteVpc deleteVpc = new DeleteVpc(id, options, lease);
+                        deleteVpc.execute();
+                    }
+                    break;
+                case "bake":
+                    try (Lease lease = Lease.forId(id, options)) {
+                        System.out.println("\nBaked image " + new BakeAmi(id, options, lease).execute());
+                    }
+                    break;
+                case "stats":
+                    System.out.println(NatMonitoring.stats(NatMonitoring.client(options), Clients.ec2(), id, options.getInt("minutes", 60)));
+                    break;
+                case "autoscale":
+                    new ClusterAutoscaler(id, options).execute();
+                    break;
+                default:
+                    usage();
+                    System.exit(22);
+            }
+        } catch (Deadline.CancelledException | AbortedException e) {
+            System.err.println(e instanceof AbortedException ? Deadline.report("Cancelled") : e.getMessage());
+            status = 130;
+        } catch (Deadline.DeadlineExceededException | ClientExecutionTimeoutException e) {
+            System.err.println(e instanceof ClientExecutionTimeoutException ? Deadline.report("Ran out of time") : e.getMessage());
+            status = 124;
+        } finally {
+            TagWriter.flushAll();
+            ApiRecording.finish();
+            if (options.has("trace"))
+                Trace.write(new File(options.getValue("trace", id + "-trace.json")));
+            Deadline.finished();
         }
 
-        CreateVpc createVpc = new CreateVpc(args[0]);
-        VpcInfo vpcInfo = createVpc.execute();
+        System.exit(status);
+    }
 
-        System.out.println(vpcInfo);
+    /**
+     * Hold the run to --deadline seconds, if given, and cancel it cleanly on
+     * Ctrl-C.
+     */
+    private static void startDeadline(Options options, Map<String, Integer> plan) {
+        if (options.has("deadline"))
+            Deadline.start(options.getInt("deadline", 0) * 1000L, plan);
+        Deadline.cancelOnShutdown();
+    }
 
-        System.exit(0);
+    /**
+     * The steps of a create, weighted by how long each typically takes, in
+     * the order they run - only those the options call for.
+     */
+    static Map<String, Integer> plan(Options options) {
+        ImmutableMap.Builder<String, Integer> plan = ImmutableMap.<String, Integer>builder()
+                .put("Creating ECS cluster", 2)
+                .put("Taking lease", 3)
+                .put("Creating VPC", 4)
+                .put("Creating subnets", 2)
+                .put("Creating public security group", 1)
+                .put("Creating private security group", 1);
+        if (options.has("shared-iam"))
+            plan.put("Using shared instance profile", 3);
+        else
+            plan.put("Creating ECS role", 3)
+                    .put("Creating instance profile", 4);
+        plan.put("Creating key pair", 1)
+                .put("Creating internet gateway", 2)
+                .put("Creating route table", 2)
+                .put("Creating S3 endpoint", 2)
+                .put("Creating public instance", 4)
+                .put("Adding NAT to route table", 6)
+                .put("Creating NAT alarms", 1);
+        if ("instance".equals(options.get("registry-mirror", null)))
+            plan.put("Creating registry mirror", 4);
+        if (options.has("alb"))
+            plan.put("Adding load balancer CIDR", 2)
+                    .put("Creating load balancer subnets", 2)
+                    .put("Creating load balancer security group", 1)
+                    .put("Creating load balancer", 3)
+                    .put("Creating target group", 1)
+                    .put("Creating listener", 1);
+        plan.put("Creating placement group", 1)
+                .put("Creating ECS instances", 4)
+                .put("Gathering details", 6);
+        if (options.has("wait-ready"))
+            plan.put("Waiting for instances to be ready", 30);
+        return plan.build();
     }
 
     private static void usage() {
         StringBuilder sb = new StringBuilder();
         sb.append("create-vpc takes either a single argument that will identify resources created,");
         sb.append("\n or that identifying argument plus the word 'delete' to remove all resources");
-        sb.append("\n identified by the id");
+        sb.append("\n identified by the id, or plus the word 'autoscale' to keep resizing the ECS");
+        sb.append("\n cluster to its load.");
         sb.append("\n\nFor example,");
         sb.append("\n\n\tjava -jar build/libs/create-vpc.jar my-eg");
         sb.append("\n\nwill create a set of resources identified by 'eg-id' tags of 'my-eg'.");
         sb.append("\n\n\tjava -jar build/libs/create-vpc.jar my-eg delete");
         sb.append("\n\nwill delete those same resources.");
+        sb.append("\n\n\tjava -jar build/libs/create-vpc.jar my-eg bake --bake-images=<image>,...");
+        sb.append("\n\t\t[--keep-baked=2] [--bake-timeout=1800]");
+        sb.append("\n\nwill bake an image, with the given container images already pulled, for");
+        sb.append("\nECS instances launched from then on, keeping just the newest few. Delete");
+        sb.append("\nderegisters them all, unless given --keep-images.");
+        sb.append("\n\nAdding --wait-ready[=<seconds>] to create waits, by default up to 600 seconds, for");
+        sb.append("\nthe bastion to accept SSH and the ECS instances to register in the cluster,");
+        sb.append("\nexiting with 75 if they weren't all ready in time.");
+        sb.append("\n\nAdding --user-data-profile=fast-pull,dense-packing to create or autoscale tunes");
+        sb.append("\nthe ECS instances' agent and Docker daemon for quick image pulls or many small");
+        sb.append("\ntasks. --ecs-config=<KEY>=<value>,..., --docker-opts=..., --docker-storage-opts=...");
+        sb.append("\nand --prepull=<image>,... add settings of their own, and images pulled at boot.");
+        sb.append("\n\nAdding --placement=cluster|spread|partition (with --partitions=<n>) to create");
+        sb.append("\nlaunches the ECS instances into a placement group of that strategy.");
+        sb.append("\n\nAdding --registry-mirror=bastion|instance to create runs a pull-through cache of");
+        sb.append("\nDocker Hub, on the bastion or an instance of its own, with --mirror-volume-gb of");
+        sb.append("\nstorage (20), that the ECS instances pull through.");
+        sb.append("\n\nAdding --nat-az=<zone name or id> to create puts the bastion, as the NAT, and the");
+        sb.append("\nfirst ECS subnet in that zone, rather than the first by zone id.");
+        sb.append("\n\nAdding --alb to create puts an Application Load Balancer, with subnets of its");
+        sb.append("\nown in each zone, in front of the ECS instances, forwarding port 80 to a target");
+        sb.append("\ngroup for the cluster's services.");
+        sb.append("\n\nCreate sets CloudWatch alarms on the bastion, as the NAT, at --nat-alarm-mbps (50)");
+        sb.append("\neither way, --nat-alarm-pps (20000) either way, or --nat-alarm-credits (20) CPU");
+        sb.append("\ncredits left, notifying --alarm-topic=<SNS topic ARN> if given.");
+        sb.append("\n\n\tjava -jar build/libs/create-vpc.jar my-eg stats [--minutes=60]");
+        sb.append("\n\nlists the NAT's and ECS instances' recent network, CPU and credit datapoints.");
+        sb.append("\n--cloudwatch-endpoint=<url> points create, delete and stats at a stand-in for CloudWatch.");
+        sb.append("\n\nAdding --ecs-storage=default|gp3|provisioned to create or autoscale launches the");
+        sb.append("\nECS instances with larger gp3 root and Docker volumes, or the Docker volume on");
+        sb.append("\nprovisioned IOPS, EBS-optimized, as --ecs-instance-type (t2.micro), which must");
+        sb.append("\nsupport it. --bastion-storage=default|gp3 sizes the bastion's root volume.");
+        sb.append("\n\nAdding --record=<file> to a command records its AWS calls, responses and timings");
+        sb.append("\nto <file>, gzipped; --replay=<file> plays them back to the same command with no");
+        sb.append("\nnetwork, taking the recorded time for each call scaled by --replay-scale (1).");
+        sb.append("\n\nAdding --trace=<file> to create or delete writes the timing of each step, and");
+        sb.append("\nof the AWS calls and waits within it, to <file> in Chrome trace event format.");
+        sb.append("\n\nAdding --shared-iam to create has the ECS instances use a role and instance");
+        sb.append("\nprofile shared with other environments, made by the first and deleted with the last.");
+        sb.append("\n\nAdding --events to create waits for instance state changes through an SQS");
+        sb.append("\nqueue fed by a CloudWatch Events rule, kept until delete, instead of polling;");
+        sb.append("\nto delete, it removes those even if the VPC isn't tagged as having them.");
+        sb.append("\n--sqs-endpoint=<url> and --events-endpoint=<url> point at stand-ins for those.");
+        sb.append("\n\nAdding --deadline=<seconds> to create or delete fails the run, with status 124,");
+        sb.append("\nif it isn't done in that time, each step having a share of what is left.");
+        sb.append("\nCtrl-C stops a run before its next change, with status 130. Either way the");
+        sb.append("\nsteps done are listed, and a re-run carries on from there.");
+        sb.append("\n\nCreate, delete and bake for the same id take turns: a run waits while another");
+        sb.append("\nholds the id's lease, for up to --lease-wait seconds (3600). A lease lasts");
+        sb.append("\n--lease-ttl seconds (300) unless renewed, so one left by a run that died expires.");
+        sb.append("\n\n\tjava -jar build/libs/create-vpc.jar my-eg autoscale [--min=1] [--max=8]");
+        sb.append("\n\t\t[--high-water=0.75] [--low-water=0.30] [--breaches=3] [--interval=60]");
+        sb.append("\n\t\t[--scale-out-cooldown=300] [--scale-in-cooldown=900]");
+        sb.append("\n\nwill add ECS instances while more than the high water fraction of the cluster's");
+        sb.append("\nCPU or memory is reserved, and drain and remove them while less than the low");
+        sb.append("\nwater fraction is, until stopped.");
         System.out.println(sb);
     }
 
     private VpcInfo execute() {
 
-        createCluster(ecsClient, id);
+        UserData userData = UserData.forCluster(id, options);
+        userData.encoded();  // to fail on bad settings before creating anything
+        NewCreatePlacementGroups.validateStrategy(options.get("placement", null));
+        Optional<RegistryMirror> mirror = RegistryMirror.fromOptions(options);
+        StorageProfile bastionStorage = StorageProfile.forBastion(options);
+        StorageProfile ecsStorage = StorageProfile.forEcs(options);
+
+        Trace.step("Creating ECS cluster", () -> createCluster(Clients.ecs(), id));
+
+        Trace.step("Taking lease", this::takeLease);
 
-        String vpcId = NewCreateVpc.createVpc(ec2Client, idTag);
+        String vpcId = Trace.step("Creating VPC", () -> NewCreateVpc.createVpc(Clients.ec2(), idTag));
 
-        Map<String, String> subnets = NewCreateSubnet.getSubnetId(ec2Client, vpcId, idTag);
+        if (events.isEventDriven())
+            tagResources(Clients.ec2(), vpcId, EVENTS_TAG);  // read only by delete, so written when the run ends
 
-        String accessSecurityGroup = NewCreateSecurityGroups.getPublicSecurityGroup(ec2Client, vpcId, idTag, PUBLIC_TAG);
+        List<Tag> vpcTags = NewCreateVpc.getTags(Clients.ec2(), vpcId);
 
-        String privateSecurityGroup = NewCreateSecurityGroups.getPrivateSecurityGroup(ec2Client, vpcId, idTag, PRIVATE_TAG);
+        ClientTokens tokens = ClientTokens.forVpc(id, vpcId, vpcTags);
 
-        String roleName = NewCreateProfiles.getEcsRole(iamClient, id);
+        SubnetLayout subnets = Trace.step("Creating subnets", () -> NewCreateSubnet.getSubnetLayout(Clients.ec2(), vpcId, Optional.ofNullable(options.get("nat-az", null)), idTag));
 
-        String instanceProfileArn = NewCreateProfiles.getInstanceProfile(iamClient, roleName, id);
+        String accessSecurityGroup = Trace.step("Creating public security group", () -> NewCreateSecurityGroups.getPublicSecurityGroup(Clients.ec2(), vpcId, mirror.isPresent(), idTag, PUBLIC_TAG));
 
-        String keyName = NewCreateKeyPairs.createAndWriteKeyPair(ec2Client, id);
+        String privateSecurityGroup = Trace.step("Creating private security group", () -> NewCreateSecurityGroups.getPrivateSecurityGroup(Clients.ec2(), vpcId, idTag, PRIVATE_TAG));
 
-        String publicSubnetId = subnets.values().iterator().next();  // to pick whichever comes up
+        String instanceProfileArn = getInstanceProfile(vpcId, vpcTags);
 
-        String internetGatewayId = NewCreateRouteTables.createAndAttachInternetGateway(ec2Client, vpcId, idTag);
+        String keyName = Trace.step("Creating key pair", () -> NewCreateKeyPairs.createAndWriteKeyPair(Clients.ec2(), id));
 
-        NewCreateRouteTables.createAndAttachInternetRouteTable(ec2Client, vpcId, internetGatewayId, publicSubnetId, idTag, PUBLIC_TAG);
+        String publicSubnetId = subnets.publicSubnet();
 
-        String publicInstanceId = NewCreateInstances.createAccessInstance(ec2Client, subnets, accessSecurityGroup, keyName, idTag, PUBLIC_TAG);
+        String internetGatewayId = Trace.step("Creating internet gateway", () -> NewCreateRouteTables.createAndAttachInternetGateway(Clients.ec2(), vpcId, idTag));
 
-        NewCreateRouteTables.updateMainRouteTableForNat(ec2Client, vpcId, publicInstanceId);
+        String publicRouteTableId = Trace.step("Creating route table", () -> NewCreateRouteTables.createAndAttachInternetRouteTable(Clients.ec2(), vpcId, internetGatewayId, publicSubnetId, idTag, PUBLIC_TAG));
 
-        List<Reservation> priv = NewCreateInstances.createEcsInstances(ec2Client, id, subnets, privateSecurityGroup, instanceProfileArn, keyName, idTag, PRIVATE_TAG);
+        Trace.step("Creating S3 endpoint", () -> NewCreateEndpoints.getS3Endpoint(Clients.ec2(), tokens, vpcId, idTag));
+
+        String publicInstanceId = Trace.step("Creating public instance", () -> NewCreateInstances.createAccessInstance(Clients.ec2(), tokens, bastionStorage, mirror, subnets, accessSecurityGroup, keyName, idTag, PUBLIC_TAG));
+
+        Trace.step("Adding NAT to route table", () -> NewCreateRouteTables.updateMainRouteTableForNat(Clients.ec2(), events, vpcId, publicInstanceId));
+
+        NatMonitoring monitoring = NatMonitoring.fromOptions(options);
+        Trace.step("Creating NAT alarms", () -> monitoring.putAlarms(NatMonitoring.client(options), id, publicInstanceId));
+
+        mirror.ifPresent(m -> useRegistryMirror(m, tokens, bastionStorage, userData, subnets, accessSecurityGroup, keyName));
+
+        UnaryOperator<VpcInfo> loadBalancer = options.has("alb")
+                ? createLoadBalancer(vpcId, subnets.zones(), publicRouteTableId, privateSecurityGroup)
+                : UnaryOperator.identity();
+
+        Optional<PlacementGroup> placementGroup = Trace.step("Creating placement group", () -> NewCreatePlacementGroups.getPlacementGroup(Clients.ec2(), id, options.get("placement", null), options.getInt("partitions", 2), idTag));
+
+        List<Reservation> priv = Trace.step("Creating ECS instances", () -> NewCreateInstances.createEcsInstances(Clients.ec2(), tokens, userData, ecsStorage, subnets, privateSecurityGroup, instanceProfileArn, keyName, placementGroup, idTag, PRIVATE_TAG));
 
         System.out.print("\nGathering details");
 
-        String publicIp = NewCreateInstances.getPublicIp(ec2Client, publicInstanceId);
+        String publicIp = Trace.step("Gathering details", () -> NewCreateInstances.getPublicIp(Clients.ec2(), events, publicInstanceId));
 
         List<String> privateIps = getPrivateIps(priv);
 
-        return new VpcInfo(id, publicIp, privateIps);
+        TagWriter.of(Clients.ec2()).flush();
+
+        if (!options.has("wait-ready"))
+            return loadBalancer.apply(new VpcInfo(id, publicIp, privateIps)
+                    .withStorage(bastionStorage.toString(), ecsStorage.toString()));
+
+        Map<String, String> ecsInstances = priv.stream()
+                .flatMap(r -> r.getInstances().stream())
+                .collect(Collectors.toMap(Instance::getInstanceId, i -> i.getNetworkInterfaces().get(0).getPrivateIpAddress()));
+        long deadlineSeconds = "true".equals(options.get("wait-ready", null)) ? 600 : options.getInt("wait-ready", 600);
+        Map<String, Long> readiness = Trace.step("Waiting for instances to be ready", () ->
+                ReadinessGate.await(Clients.ecs(), id, ecsInstances, publicIp, deadlineSeconds * 1000));
+
+        return loadBalancer.apply(new VpcInfo(id, publicIp, privateIps, readiness)
+                .withStorage(bastionStorage.toString(), ecsStorage.toString()));
+    }
+
+    /**
+     * An Application Load Balancer over subnets of its own in the zones,
+     * forwarding to a target group for the cluster's services.
+     *
+     * @return adds the load balancer's details to those of the VPC
+     */
+    private UnaryOperator<VpcInfo> createLoadBalancer(String vpcId, List<String> zoneNames, String routeTableId, String privateSecurityGroup) {
+        Trace.step("Adding load balancer CIDR", () -> NewCreateLoadBalancer.addCidrBlock(Clients.ec2(), vpcId));
+
+        List<String> subnetIds = Trace.step("Creating load balancer subnets", () ->
+                NewCreateLoadBalancer.getSubnets(Clients.ec2(), vpcId, zoneNames, routeTableId, idTag));
+
+        String securityGroup = Trace.step("Creating load balancer security group", () -> {
+            String groupId = NewCreateSecurityGroups.getLoadBalancerSecurityGroup(Clients.ec2(), vpcId, idTag, NewCreateLoadBalancer.LOAD_BALANCER_TAG);
+            NewCreateLoadBalancer.allowFromLoadBalancer(Clients.ec2(), privateSecurityGroup, groupId);
+            return groupId;
+        });
+
+        LoadBalancer lb = Trace.step("Creating load balancer", () ->
+                NewCreateLoadBalancer.getLoadBalancer(Clients.elb(), id, subnetIds, securityGroup));
+
+        String targetGroupArn = Trace.step("Creating target group", () -> NewCreateLoadBalancer.getTargetGroup(Clients.elb(), id, vpcId));
+
+        Trace.step("Creating listener", () -> NewCreateLoadBalancer.getListener(Clients.elb(), lb.getLoadBalancerArn(), targetGroupArn));
+
+        return info -> info.withLoadBalancer(lb.getDNSName(), targetGroupArn);
+    }
+
+    /**
+     * Have the ECS instances pull through the registry mirror, on the
+     * bastion or on an instance of its own.
+     */
+    private void useRegistryMirror(RegistryMirror mirror, ClientTokens tokens, StorageProfile storage, UserData userData, SubnetLayout subnets, String securityGroup, String keyName) {
+        if (!mirror.isOnBastion())
+            Trace.step("Creating registry mirror", () -> mirror.createInstance(Clients.ec2(), tokens, storage, subnets, securityGroup, keyName, idTag));
+        Optional<String> address = RegistryMirror.findAddress(Clients.ec2(), idTag);
+        if (address.isPresent())
+            RegistryMirror.pointAt(userData, address.get());
+        else
+            System.err.print("\nThe bastion was created without the registry mirror - delete and create again, or use --registry-mirror=instance");
+    }
+
+    /**
+     * The environment's own role and instance profile, or the shared ones if
+     * given --shared-iam, or if it has used them before. The VPC is tagged as
+     * sharing them before joining, as delete only leaves the shared role if
+     * the VPC is tagged, and would otherwise miss a join that a run dying
+     * straight after left behind.
+     */
+    private String getInstanceProfile(String vpcId, List<Tag> vpcTags) {
+        boolean joined = vpcTags.contains(SHARED_IAM_TAG);
+        if (joined || options.has("shared-iam")) {
+            if (!joined)
+                TagWriter.await(tagResources(Clients.ec2(), vpcId, SHARED_IAM_TAG));
+            return Trace.step("Using shared instance profile", () ->
+                    NewCreateProfiles.joinSharedInstanceProfile(Clients.iam(), id, joined, lease));
+        }
+        String roleName = Trace.step("Creating ECS role", () -> NewCreateProfiles.getEcsRole(Clients.iam(), id));
+        return Trace.step("Creating instance profile", () -> NewCreateProfiles.getInstanceProfile(Clients.iam(), roleName, id));
     }
 
     private List<String> getPrivateIps(List<Reservation> priv) {
@@ -115,18 +388,40 @@ public class CreateVpc {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Sleep for the given time, or until the step runs out of time, throwing
+     * if it has, or if the run has been cancelled.
+     */
     static void pause(int time) {
+        Deadline.check();
+        long millis = Math.min(time, Deadline.remainingMillis());
+        Trace.waiting(() -> {
+            try {
+                System.out.print(".");
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Deadline.check();
+    }
+
+    /**
+     * Take the id's lease, held on its cluster. A delete this run waited
+     * behind deletes the cluster as its last step, so it is created again.
+     */
+    private void takeLease() {
         try {
-            System.out.print(".");
-            Thread.sleep(time);
-        } catch (InterruptedException e) {
-            // ignore
+            lease.onCluster(Clients.ecs());
+        } catch (ClusterNotFoundException e) {
+            createCluster(Clients.ecs(), id);
+            lease.onCluster(Clients.ecs());
         }
     }
 
-    private static String createCluster(AmazonECSClient ecsClient, String clusterName) {
+    private static String createCluster(AmazonECSClient client, String clusterName) {
         System.out.print("\nCreating ECS cluster");
-        return ecsClient.createCluster(
+        return client.createCluster(
                 new CreateClusterRequest()
                         .withClusterName(clusterName))
                 .getCluster()
@@ -144,18 +439,17 @@ public class CreateVpc {
         return new Filter("tag:" + tag.getKey()).withValues(tag.getValue());
     }
 
-    static void tagResources(AmazonEC2Client client, String resource, Tag... tags) {
-        client.createTags(
-                new CreateTagsRequest()
-                        .withResources(resource)
-                        .withTags(tags));
+    /**
+     * Queue the resource to be tagged, in a batch with others given the same
+     * tags. The tags are written shortly after; wait on the result where the
+     * tags need to be there before going on.
+     */
+    static CompletableFuture<Void> tagResources(AmazonEC2Client client, String resource, Tag... tags) {
+        return TagWriter.of(client).tag(Collections.singletonList(resource), tags);
     }
 
-    static void tagResources(AmazonEC2Client client, Tag tag, String... resources) {
-        client.createTags(
-                new CreateTagsRequest()
-                        .withResources(resources)
-                        .withTags(tag));
+    static CompletableFuture<Void> tagResources(AmazonEC2Client client, Tag tag, String... resources) {
+        return TagWriter.of(client).tag(Arrays.asList(resources), tag);
     }
 
     static class DefectException extends RuntimeException {
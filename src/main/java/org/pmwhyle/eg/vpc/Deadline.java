@@ -0,0 +1,223 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.RequestHandler2;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The time a run has left, and whether it has been cancelled.
+ * <p>
+ * Given a total budget and a plan of the steps to take, weighted by how long
+ * each typically needs, each step may use its weight's share of whatever is
+ * left when it starts - so time a quick step didn't use passes on to those
+ * after it. Pauses, waits and retries stop at the end of the step's share,
+ * and SDK calls are timed out there, failing the run with
+ * {@link DeadlineExceededException}. Without a budget a run may take as long
+ * as it needs, but can still be cancelled.
+ * <p>
+ * Once cancelled, by an interrupt or at exit, no further step starts and no
+ * further mutating call is made, other than tagging - so that whatever was
+ * created is found by the next run - with {@link CancelledException} thrown
+ * instead.
+ */
+class Deadline {
+
+    private static final long GRACE_MILLIS = 10000;
+    private static final Set<String> TAGGING = new HashSet<>(Arrays.asList("CreateTags", "DeleteTags"));
+
+    private static long startMillis = System.currentTimeMillis();
+    private static long endMillis = Long.MAX_VALUE;
+    private static Map<String, Integer> plan = Collections.emptyMap();
+    private static Thread owner;
+    private static volatile boolean cancelled = false;
+    private static final Deque<Step> steps = new ArrayDeque<>();
+    private static final Set<String> started = new HashSet<>();
+    private static final List<String> done = new ArrayList<>();
+    private static final CountDownLatch finished = new CountDownLatch(1);
+
+    private Deadline() {
+    }
+
+    /**
+     * Start the clock on the run.
+     *
+     * @param totalMillis how long the run may take, in all
+     * @param plan        the steps the run takes, in order, with the weight
+     *                    of each; steps not in the plan share that of their
+     *                    enclosing step, or of the run, and steps passed over
+     *                    no longer count against those after them
+     */
+    static synchronized void start(long totalMillis, Map<String, Integer> plan) {
+        startMillis = System.currentTimeMillis();
+        endMillis = totalMillis > Long.MAX_VALUE - startMillis ? Long.MAX_VALUE : startMillis + totalMillis;
+        Deadline.plan = plan;
+        owner = Thread.currentThread();
+        steps.clear();
+        started.clear();
+        done.clear();
+    }
+
+    /**
+     * Cancel the run on an interrupt at exit, such as on Ctrl-C, letting
+     * the run wind up before reporting what it did.
+     */
+    static void cancelOnShutdown() {
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (finished.getCount() == 0)
+                return;
+            cancelled = true;
+            main.interrupt();
+            try {
+                if (finished.await(GRACE_MILLIS, TimeUnit.MILLISECONDS))
+                    return;
+            } catch (InterruptedException e) {
+                // report anyway
+            }
+            System.err.println(report("Cancelled"));
+        }, "cancel"));
+    }
+
+    /**
+     * The run has wound up, and reported anything it needed to.
+     */
+    static void finished() {
+        finished.countDown();
+    }
+
+    static boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Run a step within its share of the time left.
+     */
+    static <T> T step(String name, Supplier<T> body) {
+        Step step = begin(name);
+        try {
+            T result = body.get();
+            end(step, result);
+            return result;
+        } finally {
+            synchronized (Deadline.class) {
+                steps.remove(step);
+            }
+        }
+    }
+
+    private static synchronized Step begin(String name) {
+        check();
+        long end = steps.isEmpty() ? endMillis : steps.peek().endMillis;
+        Integer weight = steps.isEmpty() ? plan.get(name) : null;
+        if (weight != null && end != Long.MAX_VALUE) {
+            started.add(name);
+            int left = weight + plan.keySet().stream()
+                    .skip(new ArrayList<>(plan.keySet()).indexOf(name) + 1)
+                    .filter(later -> !started.contains(later))
+                    .mapToInt(plan::get)
+                    .sum();
+            long now = System.currentTimeMillis();
+            end = now + Math.max(0, end - now) * weight / left;
+        }
+        Step step = new Step(name, end);
+        steps.push(step);
+        return step;
+    }
+
+    private static synchronized void end(Step step, Object result) {
+        if (steps.size() == 1)
+            done.add(result == null ? step.name : step.name + ": " + result);
+    }
+
+    /**
+     * How long the current step has left, or the run if not in a step.
+     */
+    static synchronized long remainingMillis() {
+        long end = steps.isEmpty() ? endMillis : steps.peek().endMillis;
+        return end == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, end - System.currentTimeMillis());
+    }
+
+    /**
+     * Throw if the run has been cancelled or interrupted, or is out of time.
+     */
+    static void check() {
+        if (cancelled || Thread.currentThread().isInterrupted())
+            throw new CancelledException();
+        if (remainingMillis() == 0)
+            throw new DeadlineExceededException();
+    }
+
+    /**
+     * Stop mutating calls through the client once the run is cancelled or
+     * out of time, and time out calls made by the run at the end of its
+     * step's share.
+     */
+    static <T extends AmazonWebServiceClient> T guarded(T client) {
+        client.addRequestHandler(new Guard());
+        return client;
+    }
+
+    /**
+     * The steps done, each with the resource it returned, and the step in
+     * progress.
+     */
+    static synchronized String report(String outcome) {
+        StringBuilder sb = new StringBuilder("\n" + outcome);
+        if (!steps.isEmpty())
+            sb.append(" during '").append(steps.peekLast().name).append("'");
+        sb.append(" after ").append((System.currentTimeMillis() - startMillis) / 1000).append("s.");
+        if (done.isEmpty()) {
+            sb.append("\nNo steps were completed.");
+        } else {
+            sb.append("\nCompleted:");
+            done.forEach(step -> sb.append("\n  ").append(step));
+        }
+        sb.append("\nRe-run to carry on from here, or delete to remove what exists.");
+        return sb.toString();
+    }
+
+    private static class Step {
+        private final String name;
+        private final long endMillis;
+
+        Step(String name, long endMillis) {
+            this.name = name;
+            this.endMillis = endMillis;
+        }
+    }
+
+    private static class Guard extends RequestHandler2 {
+
+        @Override
+        public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+            String operation = request.getClass().getSimpleName().replaceFirst("Request$", "");
+            if (TAGGING.contains(operation))
+                return request;
+            if (Trace.isMutating(operation))
+                check();
+            if (Thread.currentThread() == owner) {
+                long remaining = remainingMillis();
+                if (remaining < Integer.MAX_VALUE)
+                    request.setSdkClientExecutionTimeout((int) Math.max(1, remaining));
+            }
+            return request;
+        }
+    }
+
+    static class CancelledException extends RuntimeException {
+        CancelledException() {
+            super(report("Cancelled"));
+        }
+    }
+
+    static class DeadlineExceededException extends RuntimeException {
+        DeadlineExceededException() {
+            super(report("Ran out of time"));
+        }
+    }
+}
@@ -3,12 +3,18 @@ package org.pmwhyle.eg.vpc;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.Vpc;
 import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.model.ClusterNotFoundException;
 import com.amazonaws.services.ecs.model.DeleteClusterRequest;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
 import com.amazonaws.services.identitymanagement.model.*;
+import com.google.common.collect.ImmutableMap;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static org.pmwhyle.eg.vpc.CreateVpc.*;
@@ -20,63 +26,153 @@ import static org.pmwhyle.eg.vpc.NewCreateProfiles.pathFor;
  */
 class DeleteVpc {
 
-    private final AmazonEC2Client ec2Client;
-    private final AmazonIdentityManagementClient iamClient;
-    private final AmazonECSClient ecsClient;
 
     private final Tag idTag;
     private final String id;
+    private final Options options;
+    private final Lease lease;
 
     /**
      * An instance that will delete the resources that are identified by the
      * provided id.
      *
-     * @param id the identifier of the resources to be deleted
+     * @param id      the identifier of the resources to be deleted
+     * @param options --keep-images to keep any images baked for the environment,
+     *                and --events to remove any instance events subscription
+     *                whether or not the VPC is tagged as having one
+     * @param lease   held on the id's cluster before finding anything to delete
      */
-    DeleteVpc(String id) {
-        ec2Client = new AmazonEC2Client();
-        iamClient = new AmazonIdentityManagementClient();
-        ecsClient = new AmazonECSClient();
+    DeleteVpc(String id, Options options, Lease lease) {
+        this.options = options;
+        this.lease = lease;
         idTag = new Tag("eg-id").withValue(id);
         this.id = id;
     }
 
+    /**
+     * The steps of a delete, weighted by how long each typically takes.
+     */
+    static Map<String, Integer> plan() {
+        return ImmutableMap.<String, Integer>builder()
+                .put("Taking lease", 3)
+                .put("Finding VPC", 1)
+                .put("Deleting private instances", 2)
+                .put("Deleting public instances", 2)
+                .put("Deleting image builders", 1)
+                .put("Deleting registry mirror", 1)
+                .put("Deregistering baked images", 2)
+                .put("Removing NAT from route table", 1)
+                .put("Deleting S3 endpoints", 3)
+                .put("Deleting NAT alarms", 1)
+                .put("Deleting load balancer", 6)
+                .put("Deleting route tables", 2)
+                .put("Waiting for instances to terminate", 20)
+                .put("Deleting internet gateway", 4)
+                .put("Deleting key pairs", 1)
+                .put("Deleting instance profiles", 2)
+                .put("Deleting roles", 2)
+                .put("Releasing shared role", 2)
+                .put("Deleting placement groups", 3)
+                .put("Deleting security groups", 4)
+                .put("Deleting subnets", 2)
+                .put("Deleting VPC", 2)
+                .put("Deleting ECS cluster", 1)
+                .put("Deleting instance events subscription", 1)
+                .build();
+    }
+
     /**
      * Proceed and delete the resources identified in this instance.
      */
     void execute() {
 
-        List<String> vpcIds = getVpcIds(ec2Client, idTag);
+        Trace.step("Taking lease", this::takeLease);
+
+        List<String> vpcIds = Trace.step("Finding VPC", () -> getVpcIds(Clients.ec2(), idTag));
+
+        boolean subscribed = options.has("events")
+                || vpcIds.stream().anyMatch(vpcId -> NewCreateVpc.isTagged(Clients.ec2(), vpcId, CreateVpc.EVENTS_TAG));
+        boolean sharedIam = vpcIds.stream().anyMatch(vpcId -> NewCreateVpc.isTagged(Clients.ec2(), vpcId, CreateVpc.SHARED_IAM_TAG));
+
+        List<String> privateInstances = Trace.step("Deleting private instances", () -> deleteInstances(Clients.ec2(), PRIVATE_TAG, idTag));
+
+        List<String> publicInstances = Trace.step("Deleting public instances", () -> deleteInstances(Clients.ec2(), PUBLIC_TAG, idTag));
+
+        List<String> builders = Trace.step("Deleting image builders", () -> deleteInstances(Clients.ec2(), BakeAmi.BUILDER_TAG, idTag));
+
+        List<String> mirrors = Trace.step("Deleting registry mirror", () -> deleteInstances(Clients.ec2(), RegistryMirror.INSTANCE_TAG, idTag));
+
+        if (!options.has("keep-images"))
+            Trace.step("Deregistering baked images", () -> BakeAmi.deregisterImages(Clients.ec2(), 0, idTag));
+
+        Trace.step("Removing NAT from route table", () -> updateMainRouteTableToRemoveNat(Clients.ec2(), vpcIds, publicInstances));
+
+        Trace.step("Deleting S3 endpoints", () -> deleteVpcEndpoints(Clients.ec2(), vpcIds, idTag));
+
+        Trace.step("Deleting NAT alarms", () -> NatMonitoring.deleteAlarms(NatMonitoring.client(options), id));
 
-        deleteInstances(ec2Client, PRIVATE_TAG, idTag);
+        Trace.step("Deleting load balancer", () -> NewCreateLoadBalancer.deleteLoadBalancer(Clients.elb(), Clients.ec2(), id));
 
-        List<String> publicInstances = deleteInstances(ec2Client, PUBLIC_TAG, idTag);
+        Trace.step("Deleting route tables", () -> deleteRouteTables(Clients.ec2(), idTag));
 
-        updateMainRouteTableToRemoveNat(ec2Client, vpcIds, publicInstances);
+        List<String> terminating = new ArrayList<>(privateInstances);
+        terminating.addAll(publicInstances);
+        terminating.addAll(builders);
+        terminating.addAll(mirrors);
+        Trace.step("Waiting for instances to terminate", () -> awaitTermination(terminating));
 
-        deleteRouteTables(ec2Client, idTag);
+        Trace.step("Deleting internet gateway", () -> deleteInternetGateways(Clients.ec2(), idTag));
 
-        deleteInternetGateways(ec2Client, idTag);
+        Trace.step("Deleting key pairs", () -> deleteKeyPair(Clients.ec2(), id));
 
-        deleteKeyPair(ec2Client, id);
+        Trace.step("Deleting instance profiles", () -> deleteInstanceProfile(Clients.iam(), pathFor(id)));
 
-        deleteInstanceProfile(iamClient, pathFor(id));
+        Trace.step("Deleting roles", () -> deleteRole(Clients.iam(), pathFor(id)));
 
-        deleteRole(iamClient, pathFor(id));
+        if (sharedIam)
+            Trace.step("Releasing shared role", () -> releaseSharedRole(Clients.iam(), lease, id));
 
-        deleteSecurityGroup(ec2Client, idTag);
+        Trace.step("Deleting placement groups", () -> deletePlacementGroups(Clients.ec2(), idTag));
 
-        deleteSubnets(ec2Client, idTag);
+        Trace.step("Deleting security groups", () -> deleteSecurityGroup(Clients.ec2(), idTag));
 
-        deleteVpc(ec2Client, vpcIds);
+        Trace.step("Deleting subnets", () -> deleteSubnets(Clients.ec2(), idTag));
 
-        deleteCluster(ecsClient, id);
+        Trace.step("Deleting VPC", () -> deleteVpc(Clients.ec2(), vpcIds));
 
-        System.exit(0);
+        Trace.step("Deleting ECS cluster", () -> deleteCluster(Clients.ecs(), id));
+
+        if (subscribed)
+            Trace.step("Deleting instance events subscription", () -> InstanceEvents.unsubscribe(id, options));
+    }
+
+    /**
+     * Wait for the instances to terminate, as the internet gateway and
+     * placement group can't be deleted until they have. Should that take
+     * too long, the retries deleting those wait longer. This polls, as the
+     * subscription, if there is one, is about to be deleted.
+     */
+    private void awaitTermination(List<String> instanceIds) {
+        System.out.print("\nWaiting for instances to terminate");
+        if (!instanceIds.isEmpty())
+            InstanceEvents.polling().awaitState(Clients.ec2(), instanceIds, InstanceStateName.Terminated.toString(), 5000, 600000);
+    }
+
+    /**
+     * Take the id's lease, held on its cluster. Without a cluster there is no
+     * lease to take, as the environment is gone or was never finished - the
+     * rest of the delete clears up whatever is left.
+     */
+    private void takeLease() {
+        try {
+            lease.onCluster(Clients.ecs());
+        } catch (ClusterNotFoundException e) {
+            System.out.print("\nNo cluster for " + id + " to take the lease on");
+        }
     }
 
-    private void deleteCluster(AmazonECSClient ecsClient, String id) {
-        ecsClient.deleteCluster(new DeleteClusterRequest().withCluster(id));
+    private void deleteCluster(AmazonECSClient client, String id) {
+        client.deleteCluster(new DeleteClusterRequest().withCluster(id));
     }
 
     private static void updateMainRouteTableToRemoveNat(AmazonEC2Client client, List<String> vpcIds, List<String> publicInstances) {
@@ -121,6 +217,7 @@ class DeleteVpc {
 
     private static void deleteSecurityGroup(AmazonEC2Client client, Tag... tags) {
         System.out.print("\nDeleting security groups");
+        revokeGroupReferences(client, tags);
         int retryCount = 0;
         boolean deleted = false;
         while (!deleted) {
@@ -145,6 +242,54 @@ class DeleteVpc {
         }
     }
 
+    /**
+     * Revoke the rules letting one group in from another, such as the ECS
+     * instances' from the load balancer's, as neither can be deleted while
+     * the other refers to it.
+     */
+    private static void revokeGroupReferences(AmazonEC2Client client, Tag... tags) {
+        client.describeSecurityGroups(
+                new DescribeSecurityGroupsRequest()
+                        .withFilters(getFiltersForTags(tags)))
+                .getSecurityGroups()
+                .forEach(sg -> {
+                    List<IpPermission> references = sg.getIpPermissions().stream()
+                            .filter(permission -> !permission.getUserIdGroupPairs().isEmpty())
+                            .collect(Collectors.toList());
+                    if (!references.isEmpty())
+                        client.revokeSecurityGroupIngress(
+                                new RevokeSecurityGroupIngressRequest()
+                                        .withGroupId(sg.getGroupId())
+                                        .withIpPermissions(references));
+                });
+    }
+
+    private static void deletePlacementGroups(AmazonEC2Client client, Tag... tags) {
+        System.out.print("\nDeleting placement groups");
+        int retryCount = 0;
+        boolean deleted = false;
+        while (!deleted) {
+            try {
+                client.describePlacementGroups(
+                        new DescribePlacementGroupsRequest()
+                                .withFilters(getFiltersForTags(tags)))
+                        .getPlacementGroups()
+                        .forEach(pg ->
+                                client.deletePlacementGroup(
+                                        new DeletePlacementGroupRequest()
+                                                .withGroupName(pg.getGroupName())));
+                deleted = true;
+            } catch (AmazonServiceException ase) {
+                if (retryCount < 30) {  // in use until its instances have terminated
+                    pause(2000);
+                    retryCount++;
+                } else {
+                    throw ase;
+                }
+            }
+        }
+    }
+
     private static void deleteRole(AmazonIdentityManagementClient client, String pathPrefix) {
         System.out.print("\nDeleting Roles");
         client.listRoles(
@@ -181,6 +326,36 @@ class DeleteVpc {
                 });
     }
 
+    /**
+     * Stop the environment using the shared role and instance profile, if it
+     * did, deleting them if no other environment still does - holding the
+     * lease on the role, so that no other environment joins in between. Only
+     * called for a VPC tagged as having joined, so that other deletes make no
+     * IAM calls for it.
+     */
+    private static void releaseSharedRole(AmazonIdentityManagementClient client, Lease lease, String id) {
+        System.out.print("\nReleasing shared role");
+        if (!NewCreateProfiles.sharedUsers(client).contains(id))
+            return;
+        try {
+            lease.onRole(client, NewCreateProfiles.roleNameFor(NewCreateProfiles.SHARED_ID), () -> {
+                client.untagRole(
+                        new UntagRoleRequest()
+                                .withRoleName(NewCreateProfiles.roleNameFor(NewCreateProfiles.SHARED_ID))
+                                .withTagKeys(NewCreateProfiles.USER_TAG_PREFIX + id));
+                List<String> others = new ArrayList<>(NewCreateProfiles.sharedUsers(client));
+                others.remove(id);  // IAM may not show the tag gone yet
+                if (others.isEmpty()) {
+                    deleteInstanceProfile(client, pathFor(NewCreateProfiles.SHARED_ID));
+                    deleteRole(client, pathFor(NewCreateProfiles.SHARED_ID));
+                }
+                return null;
+            });
+        } catch (NoSuchEntityException e) {
+            // deleted already
+        }
+    }
+
     private static void deleteKeyPair(AmazonEC2Client client, String id) {
         System.out.print("\nDeleting key pairs");
         client.deleteKeyPair(new DeleteKeyPairRequest(id));
@@ -220,6 +395,23 @@ class DeleteVpc {
         }
     }
 
+    private static void deleteVpcEndpoints(AmazonEC2Client client, List<String> vpcIds, Tag tag) {
+        System.out.print("\nDeleting S3 endpoints");
+        vpcIds.forEach(vpcId -> {
+            List<String> endpointIds = NewCreateEndpoints.getExistingEndpoints(client, vpcId, tag).stream()
+                    .map(VpcEndpoint::getVpcEndpointId)
+                    .collect(Collectors.toList());
+            if (endpointIds.isEmpty())
+                return;
+            client.deleteVpcEndpoints(new DeleteVpcEndpointsRequest().withVpcEndpointIds(endpointIds));
+            int retryCount = 0;
+            while (!NewCreateEndpoints.getUndeletedEndpoints(client, vpcId, tag).isEmpty() && retryCount < 30) {
+                pause(2000);  // their routes must go before the route tables can
+                retryCount++;
+            }
+        });
+    }
+
     private static void deleteRouteTables(AmazonEC2Client client, Tag... tags) {
         client.describeRouteTables(
                 new DescribeRouteTablesRequest()
@@ -0,0 +1,399 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.cloudwatchevents.AmazonCloudWatchEvents;
+import com.amazonaws.services.cloudwatchevents.model.*;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.*;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Waits for EC2 instances to change state. By default this polls, as the
+ * code always has. Given --events, the instance state-change notifications
+ * EC2 sends to CloudWatch Events are routed by a rule into an SQS queue for
+ * the environment, which a background thread reads. The notifications carry
+ * no tags, so the rule lists the instances waited on so far, rather than
+ * routing every instance in the account; a waiter is woken as
+ * soon as an event arrives for one of its instances, and otherwise checks
+ * only every {@value #FALLBACK_POLL_MILLIS}ms, in case events are late or
+ * lost.
+ * <p>
+ * The queue and rule are kept for later runs, and removed by delete if the
+ * VPC is tagged {@link CreateVpc#EVENTS_TAG} as having used them. Delete
+ * itself only polls.
+ */
+class InstanceEvents implements AutoCloseable {
+
+    static final String STATE_CHANGE = "EC2 Instance State-change Notification";
+
+    private static final int FALLBACK_POLL_MILLIS = 30000;
+    private static final int RECEIVE_WAIT_SECONDS = 20;
+    private static final String TARGET_ID = "eg-instance-events";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, String> states = new ConcurrentHashMap<>();
+    private final Map<String, Long> eventCounts = new HashMap<>();
+    private final Set<String> watched = new TreeSet<>();
+    private final AmazonSQS sqs;
+    private final AmazonCloudWatchEvents events;
+    private final String id;
+    private final String queueUrl;
+    private final String queueArn;
+    private boolean routed;
+    private Thread receiver;
+    private volatile boolean closed;
+
+    private InstanceEvents(AmazonSQS sqs, AmazonCloudWatchEvents events, String id, String queueUrl, String queueArn) {
+        this.sqs = sqs;
+        this.events = events;
+        this.id = id;
+        this.queueUrl = queueUrl;
+        this.queueArn = queueArn;
+    }
+
+    /**
+     * Waits that only poll.
+     */
+    static InstanceEvents polling() {
+        return new InstanceEvents(null, null, null, null, null);
+    }
+
+    /**
+     * Waits that are woken by events if given --events, pointing the SQS and
+     * CloudWatch Events clients at --sqs-endpoint and --events-endpoint if
+     * given, such as a local stand-in; otherwise waits that only poll.
+     */
+    static InstanceEvents forEnvironment(String id, Options options) {
+        if (!options.has("events"))
+            return polling();
+        useEndpoints(options);
+        return subscribe(Clients.sqs(), Clients.events(), id);
+    }
+
+    private static void useEndpoints(Options options) {
+        if (options.has("sqs-endpoint"))
+            Clients.sqs().setEndpoint(options.get("sqs-endpoint", null));
+        if (options.has("events-endpoint"))
+            Clients.events().setEndpoint(options.get("events-endpoint", null));
+    }
+
+    /**
+     * Create, or find, the environment's queue, and start reading from it.
+     * The rule routing state changes into it is put once there are
+     * instances to wait on.
+     */
+    static InstanceEvents subscribe(AmazonSQS sqs, AmazonCloudWatchEvents events, String id) {
+        System.out.print("\nSubscribing to instance state changes");
+        String queueUrl = sqs.createQueue(
+                new CreateQueueRequest(queueNameFor(id))
+                        .addAttributesEntry(QueueAttributeName.MessageRetentionPeriod.toString(), "3600"))
+                .getQueueUrl();
+        String queueArn = sqs.getQueueAttributes(
+                new GetQueueAttributesRequest(queueUrl)
+                        .withAttributeNames(QueueAttributeName.QueueArn))
+                .getAttributes()
+                .get(QueueAttributeName.QueueArn.toString());
+
+        InstanceEvents instanceEvents = new InstanceEvents(sqs, events, id, queueUrl, queueArn);
+        instanceEvents.startReceiving();
+        return instanceEvents;
+    }
+
+    /**
+     * Have the rule route state changes for the instances, along with those
+     * already watched, into the queue, making the rule the first time. Should
+     * that fail, waits for them poll, and the next wait tries again.
+     */
+    private void watch(Collection<String> instanceIds) {
+        if (!isEventDriven())
+            return;
+        synchronized (watched) {
+            if (watched.containsAll(instanceIds))
+                return;
+            Set<String> watching = new TreeSet<>(watched);
+            watching.addAll(instanceIds);
+            try {
+                String ruleArn = events.putRule(
+                        new PutRuleRequest()
+                                .withName(ruleNameFor(id))
+                                .withDescription("EC2 instance state changes for " + id)
+                                .withEventPattern(eventPattern(watching))
+                                .withState(RuleState.ENABLED))
+                        .getRuleArn();
+                if (!routed)
+                    route(ruleArn);
+                watched.addAll(watching);
+            } catch (RuntimeException e) {
+                System.err.print("\nCouldn't route instance events for " + instanceIds + ", polling meanwhile: " + e.getMessage());
+            }
+        }
+    }
+
+    private void route(String ruleArn) {
+        sqs.setQueueAttributes(
+                new SetQueueAttributesRequest()
+                        .withQueueUrl(queueUrl)
+                        .addAttributesEntry(QueueAttributeName.Policy.toString(), queuePolicy(queueArn, ruleArn)));
+        PutTargetsResult targets = events.putTargets(
+                new PutTargetsRequest()
+                        .withRule(ruleNameFor(id))
+                        .withTargets(new Target().withId(TARGET_ID).withArn(queueArn)));
+        if (targets.getFailedEntryCount() != null && targets.getFailedEntryCount() > 0)
+            throw new SubscriptionFailedException(id, targets.getFailedEntries());
+        routed = true;
+    }
+
+    /**
+     * Remove the environment's rule and queue, if there are any, pointing the
+     * clients at --sqs-endpoint and --events-endpoint if given.
+     */
+    static void unsubscribe(String id, Options options) {
+        useEndpoints(options);
+        unsubscribe(Clients.sqs(), Clients.events(), id);
+    }
+
+    /**
+     * Remove the environment's rule and queue, if there are any.
+     */
+    static void unsubscribe(AmazonSQS sqs, AmazonCloudWatchEvents events, String id) {
+        System.out.print("\nDeleting instance state change subscription");
+        try {
+            events.removeTargets(new RemoveTargetsRequest().withRule(ruleNameFor(id)).withIds(TARGET_ID));
+            events.deleteRule(new DeleteRuleRequest().withName(ruleNameFor(id)));
+        } catch (ResourceNotFoundException e) {
+            // never subscribed
+        }
+        try {
+            sqs.deleteQueue(new DeleteQueueRequest(sqs.getQueueUrl(queueNameFor(id)).getQueueUrl()));
+        } catch (QueueDoesNotExistException e) {
+            // never subscribed
+        }
+    }
+
+    boolean isEventDriven() {
+        return queueUrl != null;
+    }
+
+    /**
+     * Wait until the instances are all in the given state, or the timeout
+     * passes, returning whether they are. Instances are described at first,
+     * and then on each poll; in between, the states events report are used.
+     */
+    boolean awaitState(AmazonEC2 client, Collection<String> instanceIds, String state, int pollMillis, long timeoutMillis) {
+        long deadline = deadline(timeoutMillis);
+        watch(instanceIds);
+        Set<String> pending = new HashSet<>(instanceIds);
+        boolean describe = true;
+        while (true) {
+            Map<String, Long> seen = snapshot(pending);
+            if (describe && !pending.isEmpty())
+                describeStates(client, pending);
+            pending.removeIf(instanceId -> state.equals(states.get(instanceId)));
+            long remaining = deadline - System.currentTimeMillis();
+            if (pending.isEmpty() || remaining <= 0)
+                return pending.isEmpty();
+            describe = !waitForEvent(pending, seen, Math.min(remaining, interval(pollMillis)));
+        }
+    }
+
+    /**
+     * Wait until done, checking at first, whenever an event arrives for one
+     * of the instances, and on each poll, or until the timeout passes.
+     */
+    boolean await(Collection<String> instanceIds, BooleanSupplier done, int pollMillis, long timeoutMillis) {
+        long deadline = deadline(timeoutMillis);
+        watch(instanceIds);
+        while (true) {
+            Map<String, Long> seen = snapshot(instanceIds);
+            if (done.getAsBoolean())
+                return true;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            waitForEvent(instanceIds, seen, Math.min(remaining, interval(pollMillis)));
+        }
+    }
+
+    private static long deadline(long timeoutMillis) {
+        long now = System.currentTimeMillis();
+        return timeoutMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+    }
+
+    private long interval(int pollMillis) {
+        return isEventDriven() ? Math.max(pollMillis, FALLBACK_POLL_MILLIS) : pollMillis;
+    }
+
+    private void describeStates(AmazonEC2 client, Collection<String> instanceIds) {
+        client.describeInstances(new DescribeInstancesRequest().withInstanceIds(instanceIds))
+                .getReservations()
+                .stream()
+                .flatMap(r -> r.getInstances().stream())
+                .forEach((Instance i) -> states.put(i.getInstanceId(), i.getState().getName()));
+    }
+
+    /**
+     * Wait for an event for any of the instances since the snapshot, taken
+     * before the caller last checked them, for at most the given time,
+     * returning whether one came, or throwing if the step runs out of time or
+     * the run is cancelled meanwhile.
+     */
+    private boolean waitForEvent(Collection<String> instanceIds, Map<String, Long> seen, long millis) {
+        if (!isEventDriven()) {
+            CreateVpc.pause((int) millis);
+            return false;
+        }
+        Deadline.check();
+        boolean[] arrived = {false};
+        Trace.waiting(() -> {
+            System.out.print(".");
+            synchronized (this) {
+                arrived[0] = !seen.equals(counts(instanceIds));
+                long remaining = Math.min(millis, Deadline.remainingMillis());
+                long deadline = System.currentTimeMillis() + remaining;
+                while (!arrived[0] && remaining > 0) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    arrived[0] = !seen.equals(counts(instanceIds));
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+        });
+        Deadline.check();
+        return arrived[0];
+    }
+
+    /**
+     * The number of events each of the instances has had so far.
+     */
+    private synchronized Map<String, Long> snapshot(Collection<String> instanceIds) {
+        return counts(instanceIds);
+    }
+
+    private Map<String, Long> counts(Collection<String> instanceIds) {
+        return instanceIds.stream().collect(Collectors.toMap(i -> i, i -> eventCounts.getOrDefault(i, 0L), (a, b) -> a));
+    }
+
+    private void startReceiving() {
+        receiver = new Thread(this::receive, "instance-events");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        while (!closed) {
+            try {
+                receiveOnce();
+            } catch (RuntimeException e) {
+                if (closed)
+                    return;
+                System.err.print("\nCouldn't read instance events, polling meanwhile: " + e.getMessage());
+                try {
+                    Thread.sleep(FALLBACK_POLL_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a batch of events, if any arrive within the receive wait, record
+     * them, and wake any waiters for their instances.
+     */
+    void receiveOnce() {
+        List<Message> messages = sqs.receiveMessage(
+                new ReceiveMessageRequest(queueUrl)
+                        .withWaitTimeSeconds(RECEIVE_WAIT_SECONDS)
+                        .withMaxNumberOfMessages(10))
+                .getMessages();
+        if (messages.isEmpty())
+            return;
+
+        synchronized (this) {
+            messages.forEach(message -> record(message.getBody()));
+            notifyAll();
+        }
+        sqs.deleteMessageBatch(
+                new DeleteMessageBatchRequest(queueUrl,
+                        messages.stream()
+                                .map(m -> new DeleteMessageBatchRequestEntry(m.getMessageId(), m.getReceiptHandle()))
+                                .collect(Collectors.toList())));
+    }
+
+    private void record(String body) {
+        try {
+            JsonNode event = mapper.readTree(body);
+            if (!STATE_CHANGE.equals(event.path("detail-type").asText()))
+                return;
+            String instanceId = event.path("detail").path("instance-id").asText(null);
+            String state = event.path("detail").path("state").asText(null);
+            if (instanceId == null || state == null)
+                return;
+            states.put(instanceId, state);
+            eventCounts.merge(instanceId, 1L, Long::sum);
+        } catch (IOException e) {
+            // not an event, ignore it
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (receiver != null)
+            receiver.interrupt();
+    }
+
+    static String queueNameFor(String id) {
+        return "eg-" + id + "-instance-events";
+    }
+
+    private static String ruleNameFor(String id) {
+        return "eg-" + id + "-instance-state";
+    }
+
+    private static String eventPattern(Collection<String> instanceIds) {
+        ObjectNode pattern = mapper.createObjectNode();
+        pattern.putArray("source").add("aws.ec2");
+        pattern.putArray("detail-type").add(STATE_CHANGE);
+        ArrayNode ids = pattern.putObject("detail").putArray("instance-id");
+        instanceIds.forEach(ids::add);
+        return pattern.toString();
+    }
+
+    /**
+     * Let the rule, and only the rule, send to the queue.
+     */
+    private static String queuePolicy(String queueArn, String ruleArn) {
+        ObjectNode policy = mapper.createObjectNode();
+        policy.put("Version", "2012-10-17");
+        ObjectNode statement = policy.putArray("Statement").addObject();
+        statement.put("Effect", "Allow");
+        statement.putObject("Principal").put("Service", "events.amazonaws.com");
+        statement.put("Action", "sqs:SendMessage");
+        statement.put("Resource", queueArn);
+        statement.putObject("Condition").putObject("ArnEquals").put("aws:SourceArn", ruleArn);
+        return policy.toString();
+    }
+
+    private static class SubscriptionFailedException extends RuntimeException {
+        SubscriptionFailedException(String id, List<PutTargetsResultEntry> failures) {
+            super("\nCouldn't route instance state changes for " + id + " to its queue: " + failures);
+        }
+    }
+}
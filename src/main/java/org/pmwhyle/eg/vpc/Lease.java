@@ -0,0 +1,411 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.model.*;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.model.ListRoleTagsRequest;
+import com.amazonaws.services.identitymanagement.model.NoSuchEntityException;
+import com.amazonaws.services.identitymanagement.model.TagRoleRequest;
+import com.amazonaws.services.identitymanagement.model.UntagRoleRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps runs for the same id from racing each other through the
+ * describe-then-create checks, while runs for different ids go ahead in
+ * parallel.
+ * <p>
+ * Runs on the same machine queue on a lock file for the id. Runs on
+ * different machines queue on an {@value #LEASE_KEY} tag on the id's ECS
+ * cluster, naming the run holding it and when its lease expires. The cluster
+ * is there before anything else is created, and creating it is safe to race,
+ * so the VPC is only looked for, and created, under the lease. The holder renews the lease
+ * well before then, and removes the tag when done; a run that dies without
+ * doing so holds the id only until the lease expires. A run that queued
+ * behind a create finds everything that create made, so reuses it rather
+ * than making it again.
+ * <p>
+ * Runs for different ids share the shared role, so joining it and deleting
+ * it as its last user are held to one run at a time by the same tag on the
+ * role.
+ */
+class Lease implements AutoCloseable {
+
+    static final String LEASE_KEY = "eg-lease";
+
+    private static final String LOCK_DIRECTORY = ".eg-vpc";
+    private static final int SETTLE_MILLIS = 2000;
+    private static final int POLL_MILLIS = 5000;
+
+    private final String id;
+    private final String owner;
+    private final long ttlMillis;
+    private final long waitMillis;
+    private final List<Leased> held = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService renewer;
+    private FileChannel channel;
+    private FileLock lock;
+
+    private Lease(String id, Options options) {
+        this.id = id;
+        this.owner = ApiRecording.local("lease-owner", () ->
+                ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8));
+        this.ttlMillis = options.getInt("lease-ttl", 300) * 1000L;
+        this.waitMillis = options.getInt("lease-wait", 3600) * 1000L;
+    }
+
+    /**
+     * Take the local lock for the id, waiting for any other run for it on
+     * this machine to finish. The lease on the cluster is taken separately,
+     * once the cluster is known to exist.
+     *
+     * @param options --lease-ttl for how long a lease lasts unless renewed,
+     *                in seconds, and --lease-wait for how long to wait for one
+     */
+    static Lease forId(String id, Options options) {
+        Lease lease = new Lease(id, options);
+        lease.lockLocally();
+        return lease;
+    }
+
+    private void lockLocally() {
+        try {
+            File directory = lockDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Couldn't create " + directory);
+            channel = new RandomAccessFile(new File(directory, id + ".lock"), "rw").getChannel();
+            lock = channel.tryLock();
+            if (lock == null) {
+                System.out.print("\nWaiting for another run for " + id + " on this machine");
+                Trace.waiting(() -> {
+                    try {
+                        lock = channel.lock();
+                    } catch (IOException e) {
+                        throw new LeaseNotAcquiredException(id, e);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new LeaseNotAcquiredException(id, e);
+        }
+    }
+
+    private static File lockDirectory() {
+        return new File(ApiRecording.home(), LOCK_DIRECTORY);
+    }
+
+    /**
+     * Take the lease on the id's ECS cluster, waiting while another run holds
+     * it, and keep renewing it until closed.
+     *
+     * @throws ClusterNotFoundException if the cluster doesn't exist, or is
+     *                                  deleted while waiting
+     */
+    void onCluster(AmazonECSClient client) {
+        Leased cluster = new LeasedCluster(client, id);
+        if (held.contains(cluster))
+            return;
+        System.out.print("\nTaking lease on cluster " + id);
+        take(cluster);
+    }
+
+    /**
+     * Run the body holding the lease on the shared role, waiting while
+     * another run holds it, and release it after.
+     *
+     * @throws NoSuchEntityException if the role doesn't exist, or is deleted
+     *                               while waiting
+     */
+    <T> T onRole(AmazonIdentityManagementClient client, String roleName, Supplier<T> body) {
+        Leased role = new LeasedRole(client, roleName);
+        System.out.print("\nTaking lease on role " + roleName);
+        take(role);
+        try {
+            return body.get();
+        } finally {
+            release(role);
+        }
+    }
+
+    private void take(Leased leased) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        boolean waiting = false;
+        while (!tryTake(leased)) {
+            if (System.currentTimeMillis() > deadline)
+                throw new LeaseNotAcquiredException(id, leased.toString(), holder(leased).orElse("another run"));
+            if (!waiting) {
+                System.out.print("\nWaiting for " + holder(leased).orElse("another run") + " to finish with " + leased);
+                waiting = true;
+            }
+            CreateVpc.pause(POLL_MILLIS);
+        }
+        held.add(leased);
+        startRenewing();
+    }
+
+    private boolean tryTake(Leased leased) {
+        Optional<String> current = leased.value();
+        if (current.isPresent() && !isOwn(current.get()) && !isExpired(current.get()))
+            return false;
+        write(leased);
+        CreateVpc.pause(SETTLE_MILLIS);  // another run may have written its own at the same time; the last one wins
+        return leased.value().map(this::isOwn).orElse(false);
+    }
+
+    private synchronized void release(Leased leased) {
+        held.remove(leased);
+        try {
+            if (leased.value().map(this::isOwn).orElse(false))
+                leased.remove();
+        } catch (AmazonServiceException ase) {
+            // it has gone, or the lease will expire anyway
+        }
+    }
+
+    private void startRenewing() {
+        if (renewer != null)
+            return;
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewer.scheduleAtFixedRate(this::renew, ttlMillis / 3, ttlMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void renew() {
+        for (Leased leased : held) {
+            try {
+                Optional<String> current = leased.value();
+                if (!current.isPresent() && !leased.exists()) {
+                    held.remove(leased);  // deleted
+                } else if (current.isPresent() && !isOwn(current.get())) {
+                    System.err.print("\nLost the lease on " + leased + " to " + current.get() + " - another run may now be changing " + id);
+                    held.remove(leased);
+                } else {
+                    write(leased);
+                }
+            } catch (AmazonServiceException ase) {
+                System.err.print("\nCouldn't renew the lease on " + leased + ": " + ase.getErrorMessage());
+            } catch (RuntimeException e) {
+                // thrown on, it would cancel renewing altogether
+                System.err.print("\nCouldn't renew the lease on " + leased + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop renewing, remove the lease from anything still held, and release
+     * the local lock.
+     */
+    @Override
+    public synchronized void close() {
+        if (renewer != null)
+            renewer.shutdownNow();
+        try {
+            held.forEach(this::release);
+        } finally {
+            try {
+                if (lock != null)
+                    lock.release();
+                if (channel != null)
+                    channel.close();
+            } catch (IOException e) {
+                // released when the process exits anyway
+            }
+        }
+    }
+
+    private void write(Leased leased) {
+        Retries.run(() -> leased.write(owner + "|" + (System.currentTimeMillis() + ttlMillis)));
+    }
+
+    private static Optional<String> holder(Leased leased) {
+        return leased.value().map(value -> value.substring(0, value.lastIndexOf('|')));
+    }
+
+    private boolean isOwn(String value) {
+        return value.startsWith(owner + "|");
+    }
+
+    private static boolean isExpired(String value) {
+        try {
+            return Long.parseLong(value.substring(value.lastIndexOf('|') + 1)) < System.currentTimeMillis();
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Something the lease is held on, through its {@value #LEASE_KEY} tag.
+     */
+    private interface Leased {
+        /**
+         * The lease's owner and expiry, if there is one.
+         */
+        Optional<String> value();
+
+        void write(String value);
+
+        void remove();
+
+        boolean exists();
+    }
+
+    private static class LeasedCluster implements Leased {
+        private final AmazonECSClient client;
+        private final String clusterName;
+
+        LeasedCluster(AmazonECSClient client, String clusterName) {
+            this.client = client;
+            this.clusterName = clusterName;
+        }
+
+        @Override
+        public Optional<String> value() {
+            return active()
+                    .map(Cluster::getTags)
+                    .flatMap(tags -> tags.stream()
+                            .filter(tag -> LEASE_KEY.equals(tag.getKey()))
+                            .map(Tag::getValue)
+                            .filter(value -> value.lastIndexOf('|') > 0)
+                            .findFirst());
+        }
+
+        @Override
+        public void write(String value) {
+            client.tagResource(new TagResourceRequest()
+                    .withResourceArn(arn())
+                    .withTags(new Tag().withKey(LEASE_KEY).withValue(value)));
+        }
+
+        @Override
+        public void remove() {
+            client.untagResource(new UntagResourceRequest().withResourceArn(arn()).withTagKeys(LEASE_KEY));
+        }
+
+        @Override
+        public boolean exists() {
+            return active().isPresent();
+        }
+
+        private String arn() {
+            return active()
+                    .orElseThrow(() -> new ClusterNotFoundException("There is no cluster " + clusterName))
+                    .getClusterArn();
+        }
+
+        /**
+         * The cluster, unless it is gone - a deleted cluster is still
+         * described for a while, as inactive.
+         */
+        private Optional<Cluster> active() {
+            return client.describeClusters(
+                    new DescribeClustersRequest()
+                            .withClusters(clusterName)
+                            .withInclude(ClusterField.TAGS))
+                    .getClusters()
+                    .stream()
+                    .filter(cluster -> "ACTIVE".equals(cluster.getStatus()))
+                    .findFirst();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LeasedCluster && clusterName.equals(((LeasedCluster) o).clusterName);
+        }
+
+        @Override
+        public int hashCode() {
+            return clusterName.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "cluster " + clusterName;
+        }
+    }
+
+    private static class LeasedRole implements Leased {
+        private final AmazonIdentityManagementClient client;
+        private final String roleName;
+
+        LeasedRole(AmazonIdentityManagementClient client, String roleName) {
+            this.client = client;
+            this.roleName = roleName;
+        }
+
+        @Override
+        public Optional<String> value() {
+            return client.listRoleTags(new ListRoleTagsRequest().withRoleName(roleName))
+                    .getTags()
+                    .stream()
+                    .filter(tag -> LEASE_KEY.equals(tag.getKey()))
+                    .map(com.amazonaws.services.identitymanagement.model.Tag::getValue)
+                    .filter(value -> value.lastIndexOf('|') > 0)
+                    .findFirst();
+        }
+
+        @Override
+        public void write(String value) {
+            client.tagRole(new TagRoleRequest()
+                    .withRoleName(roleName)
+                    .withTags(new com.amazonaws.services.identitymanagement.model.Tag().withKey(LEASE_KEY).withValue(value)));
+        }
+
+        @Override
+        public void remove() {
+            client.untagRole(new UntagRoleRequest().withRoleName(roleName).withTagKeys(LEASE_KEY));
+        }
+
+        @Override
+        public boolean exists() {
+            try {
+                value();
+                return true;
+            } catch (NoSuchEntityException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LeasedRole && roleName.equals(((LeasedRole) o).roleName);
+        }
+
+        @Override
+        public int hashCode() {
+            return roleName.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "role " + roleName;
+        }
+    }
+
+    private static class LeaseNotAcquiredException extends RuntimeException {
+        LeaseNotAcquiredException(String id, IOException e) {
+            super("\nCouldn't lock " + id + " in " + lockDirectory(), e);
+        }
+
+        LeaseNotAcquiredException(String id, String leased, String holder) {
+            super("\n" + holder + " still holds the lease on " + leased + " for " + id +
+                    " - try again later, or raise --lease-wait");
+        }
+    }
+}
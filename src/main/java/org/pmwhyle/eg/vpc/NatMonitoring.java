@@ -0,0 +1,239 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.*;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * CloudWatch alarms on the bastion, which is the environment's one NAT
+ * instance and so the one way out for the ECS instances, warning of it
+ * nearing the network throughput or packet rate it can sustain, or running
+ * out of CPU credits - before the services behind it slow down. They are
+ * named for the id, so a re-run updates them in place, and removed by
+ * delete.
+ * <p>
+ * Also reports recent datapoints for the NAT and the ECS instances, fetched
+ * in as few GetMetricData calls as there are pages of results.
+ */
+class NatMonitoring {
+
+    private static final String NAMESPACE = "AWS/EC2";
+    private static final int PERIOD_SECONDS = 300;
+    private static final int MAX_QUERIES = 500;
+
+    private enum Alarm {
+        NETWORK_IN("network-in", "NetworkIn", Statistic.Sum, ComparisonOperator.GreaterThanOrEqualToThreshold),
+        NETWORK_OUT("network-out", "NetworkOut", Statistic.Sum, ComparisonOperator.GreaterThanOrEqualToThreshold),
+        PACKETS_IN("packets-in", "NetworkPacketsIn", Statistic.Sum, ComparisonOperator.GreaterThanOrEqualToThreshold),
+        PACKETS_OUT("packets-out", "NetworkPacketsOut", Statistic.Sum, ComparisonOperator.GreaterThanOrEqualToThreshold),
+        CPU_CREDITS("cpu-credits", "CPUCreditBalance", Statistic.Minimum, ComparisonOperator.LessThanOrEqualToThreshold);
+
+        private final String suffix;
+        private final String metricName;
+        private final Statistic statistic;
+        private final ComparisonOperator comparison;
+
+        Alarm(String suffix, String metricName, Statistic statistic, ComparisonOperator comparison) {
+            this.suffix = suffix;
+            this.metricName = metricName;
+            this.statistic = statistic;
+            this.comparison = comparison;
+        }
+    }
+
+    private static final List<String> NAT_METRICS = Arrays.asList(
+            "NetworkIn", "NetworkOut", "NetworkPacketsIn", "NetworkPacketsOut", "CPUCreditBalance", "CPUUtilization");
+    private static final List<String> ECS_METRICS = Arrays.asList(
+            "CPUUtilization", "NetworkIn", "NetworkOut");
+
+    private final double mbps;
+    private final double pps;
+    private final double credits;
+    private final Optional<String> topicArn;
+
+    private NatMonitoring(double mbps, double pps, double credits, Optional<String> topicArn) {
+        this.mbps = mbps;
+        this.pps = pps;
+        this.credits = credits;
+        this.topicArn = topicArn;
+    }
+
+    /**
+     * Alarms at --nat-alarm-mbps (50) of throughput either way,
+     * --nat-alarm-pps (20000) packets a second either way, or
+     * --nat-alarm-credits (20) CPU credits left, each notifying
+     * --alarm-topic, an SNS topic ARN, if given.
+     */
+    static NatMonitoring fromOptions(Options options) {
+        return new NatMonitoring(
+                options.getDouble("nat-alarm-mbps", 50),
+                options.getDouble("nat-alarm-pps", 20000),
+                options.getDouble("nat-alarm-credits", 20),
+                Optional.ofNullable(options.get("alarm-topic", null)));
+    }
+
+    /**
+     * The CloudWatch client, pointed at --cloudwatch-endpoint if given, such
+     * as a local stand-in.
+     */
+    static AmazonCloudWatchClient client(Options options) {
+        if (options.has("cloudwatch-endpoint"))
+            Clients.cloudWatch().setEndpoint(options.get("cloudwatch-endpoint", null));
+        return Clients.cloudWatch();
+    }
+
+    /**
+     * Create or update the alarms on the NAT instance.
+     */
+    void putAlarms(AmazonCloudWatch client, String id, String natInstanceId) {
+        System.out.print("\nCreating NAT alarms");
+        for (Alarm alarm : Alarm.values()) {
+            PutMetricAlarmRequest request = new PutMetricAlarmRequest()
+                    .withAlarmName(alarmNameFor(id, alarm))
+                    .withAlarmDescription(alarm.metricName + " of the NAT instance for " + id)
+                    .withNamespace(NAMESPACE)
+                    .withMetricName(alarm.metricName)
+                    .withDimensions(instanceDimension(natInstanceId))
+                    .withStatistic(alarm.statistic)
+                    .withPeriod(PERIOD_SECONDS)
+                    .withEvaluationPeriods(2)
+                    .withThreshold(thresholdFor(alarm))
+                    .withComparisonOperator(alarm.comparison)
+                    .withTreatMissingData("missing")
+                    .withTags(new Tag().withKey("eg-id").withValue(id));
+            topicArn.ifPresent(request::withAlarmActions);
+            Retries.run(() -> client.putMetricAlarm(request));
+        }
+    }
+
+    /**
+     * The threshold for each period: throughput and packet rates are summed
+     * over the period.
+     */
+    private double thresholdFor(Alarm alarm) {
+        switch (alarm) {
+            case NETWORK_IN:
+            case NETWORK_OUT:
+                return mbps * 1000000 / 8 * PERIOD_SECONDS;
+            case PACKETS_IN:
+            case PACKETS_OUT:
+                return pps * PERIOD_SECONDS;
+            default:
+                return credits;
+        }
+    }
+
+    /**
+     * Delete whichever of the id's alarms exist.
+     */
+    static void deleteAlarms(AmazonCloudWatch client, String id) {
+        System.out.print("\nDeleting NAT alarms");
+        List<String> existing = client.describeAlarms(new DescribeAlarmsRequest().withAlarmNames(alarmNamesFor(id)))
+                .getMetricAlarms()
+                .stream()
+                .map(MetricAlarm::getAlarmName)
+                .collect(Collectors.toList());
+        if (!existing.isEmpty())
+            client.deleteAlarms(new DeleteAlarmsRequest().withAlarmNames(existing));
+    }
+
+    static List<String> alarmNamesFor(String id) {
+        return Arrays.stream(Alarm.values())
+                .map(alarm -> alarmNameFor(id, alarm))
+                .collect(Collectors.toList());
+    }
+
+    private static String alarmNameFor(String id, Alarm alarm) {
+        return "eg-" + id + "-nat-" + alarm.suffix;
+    }
+
+    /**
+     * The NAT's and the ECS instances' datapoints over the last minutes,
+     * newest first, each series headed by its instance and metric.
+     */
+    static String stats(AmazonCloudWatch client, AmazonEC2 ec2, String id, int minutes) {
+        com.amazonaws.services.ec2.model.Tag idTag = new com.amazonaws.services.ec2.model.Tag("eg-id").withValue(id);
+        List<String> natInstances = runningInstances(ec2, idTag, CreateVpc.PUBLIC_TAG);
+        List<String> ecsInstances = runningInstances(ec2, idTag, CreateVpc.PRIVATE_TAG);
+
+        Map<String, String> labels = new LinkedHashMap<>();
+        List<MetricDataQuery> queries = new ArrayList<>();
+        natInstances.forEach(instanceId -> NAT_METRICS.forEach(metric -> queries.add(query(labels, "NAT " + instanceId, instanceId, metric))));
+        ecsInstances.forEach(instanceId -> ECS_METRICS.forEach(metric -> queries.add(query(labels, "ECS " + instanceId, instanceId, metric))));
+        if (queries.isEmpty())
+            return "No running instances for " + id;
+
+        Date end = new Date();
+        Date start = new Date(end.getTime() - minutes * 60000L);
+        Map<String, MetricDataResult> results = new HashMap<>();
+        for (int from = 0; from < queries.size(); from += MAX_QUERIES) {
+            GetMetricDataRequest request = new GetMetricDataRequest()
+                    .withMetricDataQueries(queries.subList(from, Math.min(queries.size(), from + MAX_QUERIES)))
+                    .withStartTime(start)
+                    .withEndTime(end)
+                    .withScanBy(ScanBy.TimestampDescending);
+            String nextToken = null;
+            do {
+                GetMetricDataResult result = client.getMetricData(request.withNextToken(nextToken));
+                result.getMetricDataResults().forEach(r -> results.merge(r.getId(), r, NatMonitoring::append));
+                nextToken = result.getNextToken();
+            } while (nextToken != null);
+        }
+
+        StringBuilder sb = new StringBuilder("Datapoints for " + id + " over the last " + minutes + " minutes, per " + PERIOD_SECONDS / 60 + " minutes, newest first");
+        labels.forEach((queryId, label) -> {
+            sb.append("\n\t").append(label).append(":");
+            MetricDataResult result = results.get(queryId);
+            if (result == null || result.getValues().isEmpty())
+                sb.append(" no data");
+            else
+                result.getValues().forEach(value -> sb.append(String.format(" %.1f", value)));
+        });
+        return sb.toString();
+    }
+
+    private static MetricDataQuery query(Map<String, String> labels, String instanceLabel, String instanceId, String metric) {
+        String queryId = "m" + labels.size();
+        labels.put(queryId, instanceLabel + " " + metric);
+        return new MetricDataQuery()
+                .withId(queryId)
+                .withMetricStat(new MetricStat()
+                        .withMetric(new Metric()
+                                .withNamespace(NAMESPACE)
+                                .withMetricName(metric)
+                                .withDimensions(instanceDimension(instanceId)))
+                        .withPeriod(PERIOD_SECONDS)
+                        .withStat(metric.equals("CPUCreditBalance") ? "Minimum" : metric.equals("CPUUtilization") ? "Average" : "Sum"));
+    }
+
+    private static MetricDataResult append(MetricDataResult first, MetricDataResult next) {
+        List<Date> timestamps = new ArrayList<>(first.getTimestamps());
+        timestamps.addAll(next.getTimestamps());
+        List<Double> values = new ArrayList<>(first.getValues());
+        values.addAll(next.getValues());
+        return first.clone().withTimestamps(timestamps).withValues(values);
+    }
+
+    private static List<String> runningInstances(AmazonEC2 client, com.amazonaws.services.ec2.model.Tag... tags) {
+        List<Filter> filters = CreateVpc.getFiltersForTags(tags);
+        filters.add(new Filter("instance-state-name").withValues("running"));
+        return client.describeInstances(new DescribeInstancesRequest().withFilters(filters))
+                .getReservations()
+                .stream()
+                .flatMap(r -> r.getInstances().stream())
+                .map(Instance::getInstanceId)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static Dimension instanceDimension(String instanceId) {
+        return new Dimension().withName("InstanceId").withValue(instanceId);
+    }
+}
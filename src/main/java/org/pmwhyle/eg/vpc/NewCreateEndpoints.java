@@ -0,0 +1,122 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A gateway VPC endpoint for S3, so that S3 traffic from the instances goes
+ * directly to S3 rather than through the NAT instance.
+ */
+class NewCreateEndpoints {
+
+    /**
+     * The endpoint, made straight away with a client token if the VPC's
+     * resources are made with them, which returns the one already made if
+     * there is one; otherwise, or if that one has gone or was made for other
+     * route tables, looked for first.
+     */
+    static String getS3Endpoint(AmazonEC2Client client, ClientTokens tokens, String vpcId, Tag tag) {
+        System.out.print("\nCreating S3 endpoint");
+        List<String> routeTableIds = getRouteTableIds(client, vpcId);
+        String serviceName = s3ServiceName(client);
+
+        Optional<String> clientToken = tokens.forStep("s3-endpoint", serviceName);
+        if (clientToken.isPresent()) {
+            try {
+                VpcEndpoint endpoint = createEndpoint(client, vpcId, serviceName, routeTableIds, clientToken.get(), tag);
+                if (!endpoint.getState().toLowerCase().startsWith("delet"))
+                    return endpoint.getVpcEndpointId();
+            } catch (AmazonServiceException ase) {
+                if (!ClientTokens.isMismatch(ase))
+                    throw ase;
+            }
+        }
+
+        List<VpcEndpoint> existing = getExistingEndpoints(client, vpcId, tag);
+        if (existing.size() == 1) {
+            VpcEndpoint endpoint = existing.get(0);
+            List<String> missing = routeTableIds.stream()
+                    .filter(rt -> !endpoint.getRouteTableIds().contains(rt))
+                    .collect(Collectors.toList());
+            if (!missing.isEmpty())
+                client.modifyVpcEndpoint(
+                        new ModifyVpcEndpointRequest()
+                                .withVpcEndpointId(endpoint.getVpcEndpointId())
+                                .withAddRouteTableIds(missing));
+            return endpoint.getVpcEndpointId();
+        }
+
+        return createEndpoint(client, vpcId, serviceName, routeTableIds, ClientTokens.unique(), tag).getVpcEndpointId();
+    }
+
+    private static VpcEndpoint createEndpoint(AmazonEC2Client client, String vpcId, String serviceName, List<String> routeTableIds, String clientToken, Tag tag) {
+        return Retries.call(() -> client.createVpcEndpoint(
+                new CreateVpcEndpointRequest()
+                        .withVpcId(vpcId)
+                        .withVpcEndpointType(VpcEndpointType.Gateway)
+                        .withServiceName(serviceName)
+                        .withRouteTableIds(routeTableIds)
+                        .withClientToken(clientToken)
+                        .withTagSpecifications(ClientTokens.tagSpecification("vpc-endpoint", tag))))
+                .getVpcEndpoint();
+    }
+
+    static List<VpcEndpoint> getExistingEndpoints(AmazonEC2Client client, String vpcId, Tag tag) {
+        return getEndpoints(client, vpcId, tag, "delet");
+    }
+
+    /**
+     * Endpoints, including any still being deleted.
+     */
+    static List<VpcEndpoint> getUndeletedEndpoints(AmazonEC2Client client, String vpcId, Tag tag) {
+        return getEndpoints(client, vpcId, tag, "deleted");
+    }
+
+    private static List<VpcEndpoint> getEndpoints(AmazonEC2Client client, String vpcId, Tag tag, String excludedStatePrefix) {
+        return client.describeVpcEndpoints(
+                new DescribeVpcEndpointsRequest()
+                        .withFilters(
+                                CreateVpc.getFilterForTag(tag),
+                                new Filter("vpc-id").withValues(vpcId)))
+                .getVpcEndpoints()
+                .stream()
+                .filter(endpoint -> !endpoint.getState().toLowerCase().startsWith(excludedStatePrefix))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * All the route tables in the VPC - the main one, used by the private
+     * subnets, and the public one - in the same order every time, as a
+     * token only matches a request with the same parameters.
+     */
+    private static List<String> getRouteTableIds(AmazonEC2Client client, String vpcId) {
+        return client.describeRouteTables(
+                new DescribeRouteTablesRequest()
+                        .withFilters(new Filter("vpc-id").withValues(vpcId)))
+                .getRouteTables()
+                .stream()
+                .map(RouteTable::getRouteTableId)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static String s3ServiceName(AmazonEC2Client client) {
+        return client.describeVpcEndpointServices()
+                .getServiceNames()
+                .stream()
+                .filter(name -> name.endsWith(".s3"))
+                .findFirst()
+                .orElseThrow(NoS3EndpointServiceException::new);
+    }
+
+    private static class NoS3EndpointServiceException extends RuntimeException {
+        NoS3EndpointServiceException() {
+            super("\nNo S3 VPC endpoint service is offered in this region");
+        }
+    }
+}
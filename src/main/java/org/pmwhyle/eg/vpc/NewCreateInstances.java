@@ -1,13 +1,14 @@
 package org.pmwhyle.eg.vpc;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
-import com.google.common.base.Charsets;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -17,8 +18,8 @@ import static org.pmwhyle.eg.vpc.AMIImages.imageIdFor;
  */
 class NewCreateInstances {
 
-    private static final String CLUSTER_DEFN_TEMPLATE = "#!/bin/bash\n" +
-            "echo ECS_CLUSTER=%s >> /etc/ecs/ecs.config\n";
+    private static final String INSUFFICIENT_CAPACITY = "InsufficientInstanceCapacity";
+    private static final long PUBLIC_IP_TIMEOUT_MILLIS = 300000;
 
     private static RunInstancesRequest createInstanceRequest(String keyName) {
         RunInstancesRequest pub;
@@ -30,8 +31,12 @@ class NewCreateInstances {
         return pub;
     }
 
-    private static RunInstancesRequest createAccessInstanceRequest(AmazonEC2Client client, String securityGroup, String subnetId, String keyName) {
-        return createInstanceRequest(keyName)
+    private static RunInstancesRequest createPublicInstanceRequest(AmazonEC2Client client, StorageProfile storage, String securityGroup, String subnetId, String keyName, String clientToken, Optional<RegistryMirror> mirror, Tag... tags) {
+        List<Tag> instanceTags = new ArrayList<>(Arrays.asList(tags));
+        mirror.ifPresent(m -> instanceTags.add(RegistryMirror.MIRROR_TAG));
+        RunInstancesRequest request = storage.applyTo(createInstanceRequest(keyName))
+                .withClientToken(clientToken)
+                .withTagSpecifications(ClientTokens.tagSpecification("instance", instanceTags.toArray(new Tag[0])))
                 .withImageId(imageIdFor(client, AMIImages.NATImage))
                 .withNetworkInterfaces(
                         new InstanceNetworkInterfaceSpecification()
@@ -40,15 +45,18 @@ class NewCreateInstances {
                                 .withGroups(securityGroup)
                                 .withSubnetId(subnetId)
                 );
+        return mirror.map(m -> m.runOn(request)).orElse(request);
     }
 
-    private static RunInstancesRequest createEcsInstanceRequest(AmazonEC2Client client, String subnet, String securityGroup, String keyName, String ecsInstanceProfileArn, String clusterName) {
-        return createInstanceRequest(keyName)
-                .withIamInstanceProfile(
-                        new IamInstanceProfileSpecification()
-                                .withArn(ecsInstanceProfileArn))
-                .withImageId(imageIdFor(client, AMIImages.ECSImage))
-                .withUserData(Base64.getEncoder().encodeToString(String.format(CLUSTER_DEFN_TEMPLATE, clusterName).getBytes(Charsets.UTF_8)))
+    private static RunInstancesRequest createEcsInstanceRequest(AmazonEC2Client client, String subnet, String securityGroup, String keyName, String ecsInstanceProfileArn, UserData userData, StorageProfile storage, Optional<PlacementGroup> placementGroup, Tag... tags) {
+        return storage.applyTo(createInstanceRequest(keyName))
+                .withPlacement(placementGroup
+                        .map(pg -> new Placement().withGroupName(pg.getGroupName()))
+                        .orElse(null))
+                .withTagSpecifications(ClientTokens.tagSpecification("instance", tags))
+                .withIamInstanceProfile(profileSpecification(ecsInstanceProfileArn))
+                .withImageId(AMIImages.ecsImageIdFor(client, tags))
+                .withUserData(userData.encoded())
                 .withNetworkInterfaces(
                         new InstanceNetworkInterfaceSpecification()
                                 .withAssociatePublicIpAddress(false)
@@ -58,8 +66,42 @@ class NewCreateInstances {
     }
 
 
-    static String createAccessInstance(AmazonEC2Client client, Map<String, String> subnets, String accessSecurityGroup, String keyName, Tag... tags) {
+    /**
+     * A profile given by its ARN, or by its name, as the shared profile is
+     * so as not to need an IAM call to find its ARN.
+     */
+    private static IamInstanceProfileSpecification profileSpecification(String instanceProfile) {
+        return instanceProfile.startsWith("arn:")
+                ? new IamInstanceProfileSpecification().withArn(instanceProfile)
+                : new IamInstanceProfileSpecification().withName(instanceProfile);
+    }
+
+    /**
+     * The bastion/NAT instance, running the registry mirror too if it is to
+     * be on the bastion.
+     */
+    static String createAccessInstance(AmazonEC2Client client, ClientTokens tokens, StorageProfile storage, Optional<RegistryMirror> mirror, SubnetLayout subnets, String accessSecurityGroup, String keyName, Tag... tags) {
         System.out.print("\nCreating public instance");
+        return withoutSourceDestCheck(client,
+                createPublicInstance(client, tokens, "public-instance", storage, mirror.filter(RegistryMirror::isOnBastion), subnets, accessSecurityGroup, keyName, tags));
+    }
+
+    /**
+     * An instance in the public subnet. If the VPC's resources are made with
+     * client tokens it is launched straight away, which returns the one
+     * already launched if there is one; otherwise, or if that one has gone
+     * or was launched differently, it is looked for first.
+     */
+    static Reservation createPublicInstance(AmazonEC2Client client, ClientTokens tokens, String step, StorageProfile storage, Optional<RegistryMirror> mirror, SubnetLayout subnets, String securityGroup, String keyName, Tag... tags) {
+        String subnet = subnets.publicSubnet();
+
+        Optional<String> clientToken = tokens.forStep(step, subnets.zoneOf(subnet));
+        if (clientToken.isPresent()) {
+            Optional<Reservation> launched = runInstances(client,
+                    createPublicInstanceRequest(client, storage, securityGroup, subnet, keyName, clientToken.get(), mirror, tags));
+            if (launched.isPresent())
+                return launched.get();
+        }
 
         List<Filter> filters = CreateVpc.getFiltersForTags(tags);
         filters.add(new Filter("instance-state-name").withValues("running", "pending", "stopped", "shutting-down", "stopping"));
@@ -68,20 +110,47 @@ class NewCreateInstances {
                 .getReservations();
 
         if (hasNonTerminatedInstance(existing))
-            return getFromReservationOfSingleInstance(existing, Instance::getInstanceId);
-
-        RunInstancesResult pub = client.runInstances(
-                createAccessInstanceRequest(client, accessSecurityGroup, subnets.values().iterator().next(), keyName));
-        client.createTags(
-                new CreateTagsRequest()
-                        .withResources(pub.getReservation().getInstances().stream().map(Instance::getInstanceId).collect(Collectors.toList()))
-                        .withTags(tags));
-        pub.getReservation().getInstances().forEach(
-                instance -> client.modifyInstanceAttribute(
+            return existing.get(0);
+
+        RunInstancesRequest request = createPublicInstanceRequest(client, storage, securityGroup, subnet, keyName, ClientTokens.unique(), mirror, tags);  // built once, so every retry sends the same token
+        return Retries.call(() -> client.runInstances(request)).getReservation();
+    }
+
+    /**
+     * Let the instance act as NAT, routing traffic that isn't its own.
+     */
+    private static String withoutSourceDestCheck(AmazonEC2Client client, Reservation reservation) {
+        reservation.getInstances().stream()
+                .filter(instance -> !Boolean.FALSE.equals(instance.getSourceDestCheck()))
+                .forEach(instance -> Retries.run(() -> client.modifyInstanceAttribute(
                         new ModifyInstanceAttributeRequest()
                                 .withInstanceId(instance.getInstanceId())
-                                .withSourceDestCheck(false)));
-        return getFromReservationOfSingleInstance(pub.getReservation(), Instance::getInstanceId);
+                                .withSourceDestCheck(false))));
+        return getFromReservationOfSingleInstance(reservation, Instance::getInstanceId);
+    }
+
+    /**
+     * Run the instances the request asks for, unless its client token was
+     * used before, returning those launched then if they haven't since been
+     * terminated, and if they were launched by the same request.
+     */
+    private static Optional<Reservation> runInstances(AmazonEC2Client client, RunInstancesRequest request) {
+        try {
+            Reservation reservation = Retries.call(() -> client.runInstances(request)).getReservation();
+            return reservation.getInstances().stream().allMatch(NewCreateInstances::isLive)
+                    ? Optional.of(reservation)
+                    : Optional.empty();
+        } catch (AmazonServiceException ase) {
+            if (ClientTokens.isMismatch(ase))
+                return Optional.empty();
+            throw ase;
+        }
+    }
+
+    private static boolean isLive(Instance instance) {
+        String state = instance.getState().getName();
+        return !InstanceStateName.Terminated.toString().equals(state)
+                && !InstanceStateName.ShuttingDown.toString().equals(state);
     }
 
     private static String getFromReservationOfSingleInstance(Reservation reservation, Function<Instance,String> toGet) {
@@ -97,29 +166,72 @@ class NewCreateInstances {
                 existing.get(0).getInstances().size() == 1;
     }
 
-    static List<Reservation> createEcsInstances(AmazonEC2Client client, String clusterName, Map<String, String> subnets, String privateSecurityGroup, String instanceProfileArn, String keyName, Tag... tags) {
+    /**
+     * The first ECS instance, launched straight away with a client token
+     * if the VPC's resources are made with them, as the public instance is;
+     * otherwise, or if that one has gone, launched only if there are no
+     * other ECS instances.
+     */
+    static List<Reservation> createEcsInstances(AmazonEC2Client client, ClientTokens tokens, UserData userData, StorageProfile storage, SubnetLayout subnets, String privateSecurityGroup, String instanceProfileArn, String keyName, Optional<PlacementGroup> placementGroup, Tag... tags) {
         System.out.print("\nCreating ECS instances");
-        List<Reservation> existing = client.describeInstances(
-                new DescribeInstancesRequest().
-                        withFilters(CreateVpc.getFiltersForTags(tags)))
-                .getReservations();
+        List<String> privateSubnets = subnets.privateSubnets().stream().limit(1)  // TODO temporary limit of 1?
+                .collect(Collectors.toList());
+
+        List<Reservation> launched = new ArrayList<>();
+        for (String subnet : privateSubnets)
+            tokens.forStep("ecs-instance", subnets.zoneOf(subnet))
+                    .flatMap(clientToken -> launchEcsInstance(client, clientToken, userData, storage, subnet, privateSecurityGroup, instanceProfileArn, keyName, placementGroup, tags))
+                    .ifPresent(launched::add);
+        if (launched.size() == privateSubnets.size())
+            return launched;
 
-        if (existing.stream().mapToInt(r -> r.getInstances().size()).sum() == 1)  // TODO temporary limit of 1?
+        List<Reservation> existing = getNonTerminatedInstances(client, tags);
+
+        if (existing.stream().mapToInt(r -> r.getInstances().size()).sum() >= 1)  // any more are added by the autoscaler
             return existing;
 
-        List<Reservation> priv = subnets.values().stream().skip(1).limit(1)  // TODO temporary limit of 1?
-                .map(subnet -> createEcsInstanceRequest(client, subnet, privateSecurityGroup, keyName, instanceProfileArn, clusterName))
-                .map(client::runInstances)
-                .map(RunInstancesResult::getReservation)
+        return privateSubnets.stream()
+                .map(subnet -> launchEcsInstance(client, ClientTokens.unique(), userData, storage, subnet, privateSecurityGroup, instanceProfileArn, keyName, placementGroup, tags))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
                 .collect(Collectors.toList());
-        priv.forEach(r -> client.createTags(
-                new CreateTagsRequest(
-                        r.getInstances()
-                                .stream()
-                                .map(Instance::getInstanceId)
-                                .collect(Collectors.toList()),
-                        Arrays.asList(tags))));
-        return priv;
+    }
+
+    /**
+     * Launch a single ECS instance, tagged, in the given subnet, whether or
+     * not there are already others - unless the client token was used
+     * before, for an instance that has gone or was launched differently.
+     * When launching into a placement group AWS may have no capacity for it
+     * just then, which is retried a few times before giving up; an instance
+     * profile only just created may not yet be usable, which is retried as
+     * {@link Retries} would.
+     */
+    static Optional<Reservation> launchEcsInstance(AmazonEC2Client client, String clientToken, UserData userData, StorageProfile storage, String subnet, String privateSecurityGroup, String instanceProfileArn, String keyName, Optional<PlacementGroup> placementGroup, Tag... tags) {
+        RunInstancesRequest request = createEcsInstanceRequest(client, subnet, privateSecurityGroup, keyName, instanceProfileArn, userData, storage, placementGroup, tags)
+                .withClientToken(clientToken);
+        int retryCount = 0;
+        while (true) {
+            try {
+                return runInstances(client, request);
+            } catch (AmazonServiceException ase) {
+                if (placementGroup.isPresent() && INSUFFICIENT_CAPACITY.equals(ase.getErrorCode()) && retryCount < 5) {
+                    CreateVpc.pause(10000);
+                    retryCount++;
+                } else if (INSUFFICIENT_CAPACITY.equals(ase.getErrorCode())) {
+                    throw new NoPlacementCapacityException(placementGroup, ase);
+                } else {
+                    throw ase;
+                }
+            }
+        }
+    }
+
+    static List<Reservation> getNonTerminatedInstances(AmazonEC2Client client, Tag... tags) {
+        List<Filter> filters = CreateVpc.getFiltersForTags(tags);
+        filters.add(new Filter("instance-state-name").withValues("running", "pending", "stopped", "stopping"));
+        return client.describeInstances(
+                new DescribeInstancesRequest().withFilters(filters))
+                .getReservations();
     }
 
     private static String getPublicIpAddress(AmazonEC2Client ec2Client, String publicInstanceId) {
@@ -131,12 +243,27 @@ class NewCreateInstances {
 
     }
 
-    static String getPublicIp(AmazonEC2Client ec2Client, String publicInstanceId) {
-        String publicIp = getPublicIpAddress(ec2Client, publicInstanceId);
-        while (publicIp == null) {
-            CreateVpc.pause(1000);
-            publicIp = getPublicIpAddress(ec2Client, publicInstanceId);
+    static String getPublicIp(AmazonEC2Client ec2Client, InstanceEvents events, String publicInstanceId) {
+        String[] publicIp = {null};
+        if (!events.await(Collections.singletonList(publicInstanceId),
+                () -> (publicIp[0] = getPublicIpAddress(ec2Client, publicInstanceId)) != null,
+                1000, PUBLIC_IP_TIMEOUT_MILLIS))
+            throw new NoPublicIpException(publicInstanceId);
+        return publicIp[0];
+    }
+
+    private static class NoPublicIpException extends RuntimeException {
+        NoPublicIpException(String instanceId) {
+            super("\nInstance " + instanceId + " has had no public IP address for " +
+                    PUBLIC_IP_TIMEOUT_MILLIS / 1000 + "s - check it in the EC2 console, then re-run");
+        }
+    }
+
+    private static class NoPlacementCapacityException extends RuntimeException {
+        NoPlacementCapacityException(Optional<PlacementGroup> placementGroup, AmazonServiceException ase) {
+            super("\nAWS has no capacity for another instance" +
+                    placementGroup.map(pg -> " in " + pg.getStrategy() + " placement group " + pg.getGroupName() +
+                            " - try again later, or use a 'spread' or no placement group").orElse(""), ase);
         }
-        return publicIp;
     }
 }
@@ -45,7 +45,7 @@ class NewCreateKeyPairs {
     }
 
     static File getPrivateKeyFile(String id) {
-        return new File(System.getProperty("user.home"), ".ssh/" + id + "_id_rsa");
+        return new File(ApiRecording.home(), ".ssh/" + id + "_id_rsa");
     }
 
     private static class UnableToWritePrivateKeyException extends RuntimeException {
@@ -0,0 +1,261 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.AssociateRouteTableRequest;
+import com.amazonaws.services.ec2.model.AssociateVpcCidrBlockRequest;
+import com.amazonaws.services.ec2.model.DescribeNetworkInterfacesRequest;
+import com.amazonaws.services.ec2.model.DescribeRouteTablesRequest;
+import com.amazonaws.services.ec2.model.DescribeVpcsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.RouteTableAssociation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.VpcCidrBlockAssociation;
+import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingClient;
+import com.amazonaws.services.elasticloadbalancingv2.model.*;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * An internet-facing Application Load Balancer in front of the ECS
+ * instances, given --alb. The VPC's own CIDR block is all taken by the
+ * bastion and ECS instance subnets, so the load balancer has subnets of its
+ * own, one in each availability zone, in a second block of
+ * {@value #CIDR_BLOCK} added to the VPC, and routed to the internet as the
+ * bastion's subnet is. It forwards HTTP on port 80 to a target group that
+ * ECS services register their tasks in, on the ports Docker maps for them,
+ * which the private security group lets it reach.
+ * <p>
+ * The load balancer and target group are named for the id, so are found by
+ * name on a re-run - and only used or deleted if tagged with the id too.
+ */
+class NewCreateLoadBalancer {
+
+    static final Tag LOAD_BALANCER_TAG = new Tag("eg-access").withValue("load-balancer");
+
+    static final String CIDR_BLOCK = "10.2.3.0/25";
+    private static final String[] SUBNET_CIDR_BLOCKS = {"10.2.3.0/27", "10.2.3.32/27", "10.2.3.64/27", "10.2.3.96/27"};
+    private static final int PORT = 80;
+    private static final int EPHEMERAL_PORTS_FROM = 32768;
+    private static final int EPHEMERAL_PORTS_TO = 65535;
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final int HASH_LENGTH = 8;
+
+    /**
+     * Add the load balancer's CIDR block to the VPC, if not already, and wait
+     * for it to be usable.
+     */
+    static void addCidrBlock(AmazonEC2Client client, String vpcId) {
+        System.out.print("\nAdding CIDR " + CIDR_BLOCK + " to VPC");
+        Optional<VpcCidrBlockAssociation> association = cidrBlockAssociation(client, vpcId);
+        if (!association.isPresent())
+            Retries.run(() -> client.associateVpcCidrBlock(
+                    new AssociateVpcCidrBlockRequest()
+                            .withVpcId(vpcId)
+                            .withCidrBlock(CIDR_BLOCK)));
+        for (int retryCount = 0; !association.map(a -> "associated".equals(a.getCidrBlockState().getState())).orElse(false); retryCount++) {
+            if (retryCount == 60)
+                throw new CidrBlockNotAssociatedException(vpcId, association);
+            CreateVpc.pause(1000);
+            association = cidrBlockAssociation(client, vpcId);
+        }
+    }
+
+    private static Optional<VpcCidrBlockAssociation> cidrBlockAssociation(AmazonEC2Client client, String vpcId) {
+        return client.describeVpcs(new DescribeVpcsRequest().withVpcIds(vpcId))
+                .getVpcs()
+                .stream()
+                .flatMap(vpc -> vpc.getCidrBlockAssociationSet().stream())
+                .filter(a -> CIDR_BLOCK.equals(a.getCidrBlock()))
+                .filter(a -> !a.getCidrBlockState().getState().startsWith("disassociat"))
+                .findFirst();
+    }
+
+    /**
+     * A subnet for the load balancer in each of the zones, routed through
+     * the given route table.
+     */
+    static List<String> getSubnets(AmazonEC2Client client, String vpcId, List<String> zoneNames, String routeTableId, Tag tag) {
+        System.out.print("\nCreating load balancer subnets");
+        List<String> subnetIds = new ArrayList<>();
+        for (int i = 0; i < zoneNames.size() && i < SUBNET_CIDR_BLOCKS.length; i++)
+            subnetIds.add(NewCreateSubnet.createSubnetFor(client, vpcId, zoneNames.get(i), SUBNET_CIDR_BLOCKS[i], tag, SubnetLayout.LOAD_BALANCER_ROLE));
+
+        List<String> associated = client.describeRouteTables(new DescribeRouteTablesRequest().withRouteTableIds(routeTableId))
+                .getRouteTables()
+                .stream()
+                .flatMap(rt -> rt.getAssociations().stream())
+                .map(RouteTableAssociation::getSubnetId)
+                .collect(Collectors.toList());
+        subnetIds.stream()
+                .filter(subnetId -> !associated.contains(subnetId))
+                .forEach(subnetId -> Retries.run(() -> client.associateRouteTable(
+                        new AssociateRouteTableRequest()
+                                .withRouteTableId(routeTableId)
+                                .withSubnetId(subnetId))));
+        return subnetIds;
+    }
+
+    static LoadBalancer getLoadBalancer(AmazonElasticLoadBalancingClient client, String id, List<String> subnetIds, String securityGroup) {
+        System.out.print("\nCreating load balancer");
+        Optional<LoadBalancer> existing = findLoadBalancer(client, id);
+        if (existing.isPresent())
+            return existing.get();
+
+        return Retries.call(() -> client.createLoadBalancer(
+                new CreateLoadBalancerRequest()
+                        .withName(nameFor(id))
+                        .withType(LoadBalancerTypeEnum.Application)
+                        .withScheme(LoadBalancerSchemeEnum.InternetFacing)
+                        .withSubnets(subnetIds)
+                        .withSecurityGroups(securityGroup)
+                        .withTags(idTag(id))))
+                .getLoadBalancers()
+                .get(0);
+    }
+
+    /**
+     * The target group ECS services register their tasks in, for the load
+     * balancer to forward to.
+     */
+    static String getTargetGroup(AmazonElasticLoadBalancingClient client, String id, String vpcId) {
+        System.out.print("\nCreating target group");
+        Optional<TargetGroup> existing = findTargetGroup(client, id);
+        if (existing.isPresent())
+            return existing.get().getTargetGroupArn();
+
+        return client.createTargetGroup(
+                new CreateTargetGroupRequest()
+                        .withName(nameFor(id))
+                        .withTargetType(TargetTypeEnum.Instance)
+                        .withProtocol(ProtocolEnum.HTTP)
+                        .withPort(PORT)
+                        .withVpcId(vpcId)
+                        .withHealthCheckPath("/")
+                        .withTags(idTag(id)))
+                .getTargetGroups()
+                .get(0)
+                .getTargetGroupArn();
+    }
+
+    static String getListener(AmazonElasticLoadBalancingClient client, String loadBalancerArn, String targetGroupArn) {
+        System.out.print("\nCreating listener");
+        Optional<Listener> existing = client.describeListeners(new DescribeListenersRequest().withLoadBalancerArn(loadBalancerArn))
+                .getListeners()
+                .stream()
+                .filter(listener -> listener.getPort() == PORT)
+                .findFirst();
+        if (existing.isPresent())
+            return existing.get().getListenerArn();
+
+        return Retries.call(() -> client.createListener(
+                new CreateListenerRequest()
+                        .withLoadBalancerArn(loadBalancerArn)
+                        .withProtocol(ProtocolEnum.HTTP)
+                        .withPort(PORT)
+                        .withDefaultActions(new Action()
+                                .withType(ActionTypeEnum.Forward)
+                                .withTargetGroupArn(targetGroupArn))))
+                .getListeners()
+                .get(0)
+                .getListenerArn();
+    }
+
+    /**
+     * Let the load balancer reach the ports Docker maps for tasks on the ECS
+     * instances.
+     */
+    static void allowFromLoadBalancer(AmazonEC2Client client, String privateSecurityGroup, String loadBalancerSecurityGroup) {
+        NewCreateSecurityGroups.allowFromGroup(client, privateSecurityGroup, loadBalancerSecurityGroup, EPHEMERAL_PORTS_FROM, EPHEMERAL_PORTS_TO);
+    }
+
+    /**
+     * Delete the load balancer, and its listeners, waiting for it and its
+     * network interfaces to go - as its subnets and security group can't be
+     * deleted until they have - and then its target group.
+     */
+    static void deleteLoadBalancer(AmazonElasticLoadBalancingClient client, AmazonEC2Client ec2Client, String id) {
+        System.out.print("\nDeleting load balancer");
+        Optional<LoadBalancer> loadBalancer = findLoadBalancer(client, id);
+        if (loadBalancer.isPresent()) {
+            client.deleteLoadBalancer(new DeleteLoadBalancerRequest().withLoadBalancerArn(loadBalancer.get().getLoadBalancerArn()));
+            // interfaces are described as "ELB app/<name>/<suffix of the ARN>"
+            String arn = loadBalancer.get().getLoadBalancerArn();
+            String description = "ELB " + arn.substring(arn.indexOf("app/"));
+            for (int retryCount = 0; retryCount < 60 && (findLoadBalancer(client, id).isPresent() || hasNetworkInterfaces(ec2Client, description)); retryCount++)
+                CreateVpc.pause(5000);
+        }
+        findTargetGroup(client, id).ifPresent(targetGroup ->
+                Retries.run(() -> client.deleteTargetGroup(new DeleteTargetGroupRequest().withTargetGroupArn(targetGroup.getTargetGroupArn()))));
+    }
+
+    private static boolean hasNetworkInterfaces(AmazonEC2Client client, String description) {
+        return !client.describeNetworkInterfaces(new DescribeNetworkInterfacesRequest()
+                .withFilters(new Filter("description").withValues(description)))
+                .getNetworkInterfaces()
+                .isEmpty();
+    }
+
+    private static Optional<LoadBalancer> findLoadBalancer(AmazonElasticLoadBalancingClient client, String id) {
+        try {
+            return client.describeLoadBalancers(new DescribeLoadBalancersRequest().withNames(nameFor(id)))
+                    .getLoadBalancers()
+                    .stream()
+                    .filter(lb -> isTagged(client, lb.getLoadBalancerArn(), id))
+                    .findFirst();
+        } catch (LoadBalancerNotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<TargetGroup> findTargetGroup(AmazonElasticLoadBalancingClient client, String id) {
+        try {
+            return client.describeTargetGroups(new DescribeTargetGroupsRequest().withNames(nameFor(id)))
+                    .getTargetGroups()
+                    .stream()
+                    .filter(tg -> isTagged(client, tg.getTargetGroupArn(), id))
+                    .findFirst();
+        } catch (TargetGroupNotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isTagged(AmazonElasticLoadBalancingClient client, String arn, String id) {
+        return client.describeTags(new DescribeTagsRequest().withResourceArns(arn))
+                .getTagDescriptions()
+                .stream()
+                .flatMap(description -> description.getTags().stream())
+                .anyMatch(idTag(id)::equals);
+    }
+
+    /**
+     * The name of both the load balancer and the target group, which may be
+     * no more than {@value #MAX_NAME_LENGTH} characters, nor end in a hyphen.
+     * One that would break either rule is cut short, of any trailing
+     * hyphens too, and ended with a hash of the whole id, so that ids that
+     * differ only in what was cut still have names of their own.
+     */
+    static String nameFor(String id) {
+        String name = "eg-" + id;
+        if (name.length() <= MAX_NAME_LENGTH && !name.endsWith("-"))
+            return name;
+        String hash = Hashing.sha256().hashString(id, StandardCharsets.UTF_8).toString().substring(0, HASH_LENGTH);
+        return name.substring(0, Math.min(name.length(), MAX_NAME_LENGTH - HASH_LENGTH - 1)).replaceAll("-+$", "") + "-" + hash;
+    }
+
+    private static com.amazonaws.services.elasticloadbalancingv2.model.Tag idTag(String id) {
+        return new com.amazonaws.services.elasticloadbalancingv2.model.Tag().withKey("eg-id").withValue(id);
+    }
+
+    private static class CidrBlockNotAssociatedException extends RuntimeException {
+        CidrBlockNotAssociatedException(String vpcId, Optional<VpcCidrBlockAssociation> association) {
+            super("\nCIDR block " + CIDR_BLOCK + " wasn't added to " + vpcId +
+                    association.map(a -> ", it is " + a.getCidrBlockState().getState() + ": " + a.getCidrBlockState().getStatusMessage()).orElse(""));
+        }
+    }
+}
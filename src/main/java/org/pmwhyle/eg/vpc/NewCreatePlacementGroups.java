@@ -0,0 +1,106 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.*;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An optional placement group for the ECS instances, for lower and more
+ * consistent latency between them ('cluster'), or for keeping them on
+ * distinct hardware ('spread' or 'partition').
+ * <p>
+ * A cluster placement group lives in a single availability zone, so when
+ * one is used the ECS instances are all launched into the one private
+ * subnet; cluster groups also need an instance type that supports them.
+ */
+class NewCreatePlacementGroups {
+
+    static Optional<PlacementGroup> getPlacementGroup(AmazonEC2Client client, String id, String strategy, int partitions, Tag tag) {
+        Optional<PlacementGroup> existing = getExistingPlacementGroup(client, tag);
+        if (existing.isPresent()) {
+            if (strategy != null && !strategy.equals(existing.get().getStrategy()))
+                throw new ConflictingPlacementGroupException(existing.get(), strategy);
+            return existing;
+        }
+
+        if (strategy == null)
+            return Optional.empty();
+
+        System.out.print("\nCreating " + strategy + " placement group");
+        CreatePlacementGroupRequest request = new CreatePlacementGroupRequest()
+                .withGroupName(groupNameFor(id))
+                .withStrategy(strategy)
+                .withTagSpecifications(
+                        new TagSpecification()
+                                .withResourceType(ResourceType.PlacementGroup)
+                                .withTags(tag));
+        if (PlacementStrategy.Partition.toString().equals(strategy))
+            request.withPartitionCount(partitions);
+
+        boolean duplicate = false;
+        try {
+            client.createPlacementGroup(request);
+        } catch (AmazonServiceException ase) {
+            if (!"InvalidPlacementGroup.Duplicate".equals(ase.getErrorCode()))
+                throw ase;
+            duplicate = true;  // created by a concurrent or earlier, partly failed, run - so use that one
+        }
+
+        PlacementGroup group = client.describePlacementGroups(
+                new DescribePlacementGroupsRequest()
+                        .withGroupNames(groupNameFor(id)))
+                .getPlacementGroups()
+                .get(0);
+        if (duplicate) {
+            if (!strategy.equals(group.getStrategy()))
+                throw new ConflictingPlacementGroupException(group, strategy);
+            CreateVpc.tagResources(client, group.getGroupId(), tag);  // for delete to find it, written when the run ends
+        }
+        return Optional.of(group);
+    }
+
+    /**
+     * Fail on a --placement that isn't a strategy, before anything is
+     * created.
+     */
+    static void validateStrategy(String strategy) {
+        if (strategy == null)
+            return;
+        try {
+            PlacementStrategy.fromValue(strategy);
+        } catch (IllegalArgumentException e) {
+            throw new Options.BadOptionException("placement", strategy);
+        }
+    }
+
+    /**
+     * Whether ECS instances in the group are restricted to a single
+     * availability zone.
+     */
+    static boolean isSingleZone(Optional<PlacementGroup> group) {
+        return group.isPresent() && PlacementStrategy.Cluster.toString().equals(group.get().getStrategy());
+    }
+
+    static Optional<PlacementGroup> getExistingPlacementGroup(AmazonEC2Client client, Tag tag) {
+        List<PlacementGroup> existing = client.describePlacementGroups(
+                new DescribePlacementGroupsRequest()
+                        .withFilters(CreateVpc.getFilterForTag(tag)))
+                .getPlacementGroups();
+        return existing.stream().findFirst();
+    }
+
+    private static String groupNameFor(String id) {
+        return id + "-ecs";
+    }
+
+    private static class ConflictingPlacementGroupException extends RuntimeException {
+        ConflictingPlacementGroupException(PlacementGroup existing, String strategy) {
+            super("\nThere is already a placement group " + existing.getGroupName() + " with strategy " +
+                    existing.getStrategy() + ", which differs from the requested " + strategy +
+                    ".\nDelete and re-create to change strategy.");
+        }
+    }
+}
@@ -5,7 +5,10 @@ import com.amazonaws.services.identitymanagement.model.*;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  */
@@ -17,16 +20,28 @@ class NewCreateProfiles {
     private static final String ECS_S3_FULL_ACCESS =
             "arn:aws:iam::aws:policy/AmazonS3FullAccess";
 
+    /**
+     * The id the shared role and instance profile are made for, as though
+     * for an environment of that name.
+     */
+    static final String SHARED_ID = "eg-shared";
+
+    /**
+     * Each environment using the shared role tags it with this prefix and
+     * its id, so that the last one to stop using it can delete it.
+     */
+    static final String USER_TAG_PREFIX = "eg-user-";
+
     static String getEcsRole(AmazonIdentityManagementClient iamClient, String id) {
         System.out.print("\nCreating ECS Role");
         Optional<Role> existingRoles = getExistingRoles(iamClient, id);
         if (existingRoles.isPresent())
-            return existingRoles.get().getRoleId();
+            return existingRoles.get().getRoleName();
 
         ObjectMapper mapper = new ObjectMapper();
-        Role role;
+        Role created;
         try {
-            role = iamClient.createRole(
+            created = iamClient.createRole(
                     new CreateRoleRequest()
                             .withPath(pathFor(id))
                             .withRoleName(roleNameFor(id))
@@ -36,21 +51,22 @@ class NewCreateProfiles {
         } catch (JsonProcessingException e) {
             throw new CreateVpc.DefectException("Couldn't create a string from a hardwired class", e);
         }
+        Role role = created;
 
-        iamClient.attachRolePolicy(
+        Retries.run(() -> iamClient.attachRolePolicy(
                 new AttachRolePolicyRequest()
                         .withPolicyArn(ECS_ROLE_ARN)
-                        .withRoleName(role.getRoleName()));
+                        .withRoleName(role.getRoleName())));
 
-        iamClient.attachRolePolicy(
+        Retries.run(() -> iamClient.attachRolePolicy(
                 new AttachRolePolicyRequest()
                         .withPolicyArn(ECS_S3_FULL_ACCESS)
-                        .withRoleName(role.getRoleName()));
+                        .withRoleName(role.getRoleName())));
 
         return role.getRoleName();
     }
 
-    private static String roleNameFor(String id) {
+    static String roleNameFor(String id) {
         return id + "-ecs";
     }
 
@@ -62,22 +78,102 @@ class NewCreateProfiles {
         System.out.print("\nCreating instance profile");
         Optional<InstanceProfile> existing = getExistingInstanceProfile(iamClient, id);
 
-        if (existing.isPresent())
+        if (existing.isPresent() && !existing.get().getRoles().isEmpty())
             return existing.get().getArn();
 
-        InstanceProfile instanceProfile = iamClient.createInstanceProfile(
-                new CreateInstanceProfileRequest()
-                        .withInstanceProfileName(roleNameFor(id))
-                        .withPath(pathFor(id))).getInstanceProfile();
+        InstanceProfile instanceProfile = existing.isPresent()  // its role was removed by a delete
+                ? existing.get()
+                : iamClient.createInstanceProfile(
+                        new CreateInstanceProfileRequest()
+                                .withInstanceProfileName(roleNameFor(id))
+                                .withPath(pathFor(id))).getInstanceProfile();
 
-        iamClient.addRoleToInstanceProfile(
+        Retries.run(() -> iamClient.addRoleToInstanceProfile(
                 new AddRoleToInstanceProfileRequest()
                         .withInstanceProfileName(instanceProfile.getInstanceProfileName())
-                        .withRoleName(roleName));
+                        .withRoleName(roleName)));
 
         return instanceProfile.getArn();
     }
 
+    /**
+     * Record that the environment uses the shared role and instance profile,
+     * creating them if this is the first environment to, and return the
+     * profile's name. Environments already using them make no IAM calls.
+     * <p>
+     * The role is tagged holding the lease on it, so that the last other
+     * environment can't delete it in between; if it does so first, they are
+     * made again.
+     */
+    static String joinSharedInstanceProfile(AmazonIdentityManagementClient iamClient, String id, boolean alreadyJoined, Lease lease) {
+        System.out.print("\nUsing shared ECS role and instance profile");
+        if (alreadyJoined)
+            return sharedInstanceProfile();
+
+        Tag userTag = new Tag().withKey(USER_TAG_PREFIX + id).withValue("true");
+        for (int retryCount = 0; ; retryCount++) {
+            createShared(iamClient);
+            try {
+                boolean joined = lease.onRole(iamClient, roleNameFor(SHARED_ID), () -> {
+                    if (getExistingInstanceProfile(iamClient, SHARED_ID).map(ip -> ip.getRoles().isEmpty()).orElse(true))
+                        return false;  // deleted by its last user while waiting
+                    tagSharedRole(iamClient, userTag);
+                    return true;
+                });
+                if (joined)
+                    return sharedInstanceProfile();
+            } catch (NoSuchEntityException e) {
+                if (retryCount == 3)
+                    throw e;
+            }
+            if (retryCount == 3)
+                throw new SharedRoleGoneException();
+        }
+    }
+
+    /**
+     * The shared instance profile's name, for an environment already using
+     * it.
+     */
+    static String sharedInstanceProfile() {
+        return roleNameFor(SHARED_ID);
+    }
+
+    private static void tagSharedRole(AmazonIdentityManagementClient iamClient, Tag userTag) {
+        try {
+            iamClient.tagRole(new TagRoleRequest().withRoleName(roleNameFor(SHARED_ID)).withTags(userTag));
+        } catch (LimitExceededException e) {
+            throw new SharedRoleFullException(e);
+        }
+    }
+
+    private static void createShared(AmazonIdentityManagementClient iamClient) {
+        System.out.print("\nCreating shared ECS role and instance profile");
+        try {
+            getInstanceProfile(iamClient, getEcsRole(iamClient, SHARED_ID), SHARED_ID);
+        } catch (EntityAlreadyExistsException e) {
+            // another environment is creating them at the same time, and will finish doing so
+        }
+    }
+
+    /**
+     * The ids of the environments using the shared role, none if there
+     * isn't one.
+     */
+    static List<String> sharedUsers(AmazonIdentityManagementClient iamClient) {
+        try {
+            return iamClient.listRoleTags(new ListRoleTagsRequest().withRoleName(roleNameFor(SHARED_ID)))
+                    .getTags()
+                    .stream()
+                    .map(Tag::getKey)
+                    .filter(key -> key.startsWith(USER_TAG_PREFIX))
+                    .map(key -> key.substring(USER_TAG_PREFIX.length()))
+                    .collect(Collectors.toList());
+        } catch (NoSuchEntityException e) {
+            return Collections.emptyList();
+        }
+    }
+
     private static Optional<InstanceProfile> getExistingInstanceProfile(AmazonIdentityManagementClient iamClient, String id) {
         return iamClient.listInstanceProfiles(
                 new ListInstanceProfilesRequest()
@@ -96,4 +192,17 @@ class NewCreateProfiles {
                 .filter(role -> role.getRoleName().equals(roleNameFor(id)))
                 .findFirst();
     }
+
+    private static class SharedRoleGoneException extends RuntimeException {
+        SharedRoleGoneException() {
+            super("\nThe shared ECS role kept being deleted by other environments' deletes while joining it - try again");
+        }
+    }
+
+    private static class SharedRoleFullException extends RuntimeException {
+        SharedRoleFullException(LimitExceededException e) {
+            super("\nThe shared ECS role already has as many environments tagged on it as IAM allows" +
+                    " - create this one without --shared-iam", e);
+        }
+    }
 }
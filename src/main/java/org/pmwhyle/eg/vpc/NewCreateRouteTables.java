@@ -3,11 +3,10 @@ package org.pmwhyle.eg.vpc;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
-import static org.pmwhyle.eg.vpc.CreateVpc.pause;
-
 /**
  */
 public class NewCreateRouteTables {
@@ -18,14 +17,16 @@ public class NewCreateRouteTables {
         if (internetGateways.size() == 1)
             return internetGateways.get(0).getInternetGatewayId();
 
-        String internetGatewayId = client.createInternetGateway().getInternetGateway().getInternetGatewayId();
-
-        CreateVpc.tagResources(client, tag, internetGatewayId);
+        String internetGatewayId = client.createInternetGateway(
+                new CreateInternetGatewayRequest()
+                        .withTagSpecifications(ClientTokens.tagSpecification("internet-gateway", tag)))  // found by tag on a re-run
+                .getInternetGateway()
+                .getInternetGatewayId();
 
-        client.attachInternetGateway(
+        Retries.run(() -> client.attachInternetGateway(
                 new AttachInternetGatewayRequest()
                         .withInternetGatewayId(internetGatewayId)
-                        .withVpcId(vpcId));
+                        .withVpcId(vpcId)));
 
         return internetGatewayId;
     }
@@ -38,24 +39,23 @@ public class NewCreateRouteTables {
 
         String routeTableId = client.createRouteTable(
                 new CreateRouteTableRequest()
-                        .withVpcId(vpcId))
+                        .withVpcId(vpcId)
+                        .withTagSpecifications(ClientTokens.tagSpecification("route-table", tags)))  // found by tag on a re-run
                 .getRouteTable()
                 .getRouteTableId();
 
-        CreateVpc.tagResources(client, routeTableId, tags);
-
-        client.createRoute(
+        Retries.run(() -> client.createRoute(
                 new CreateRouteRequest()
                         .withRouteTableId(routeTableId)
                         .withGatewayId(internetGatewayId)
-                        .withDestinationCidrBlock("0.0.0.0/0"));
+                        .withDestinationCidrBlock("0.0.0.0/0")));
 
-        client.associateRouteTable(new AssociateRouteTableRequest().withRouteTableId(routeTableId).withSubnetId(publicSubnetId));
+        Retries.run(() -> client.associateRouteTable(new AssociateRouteTableRequest().withRouteTableId(routeTableId).withSubnetId(publicSubnetId)));
 
         return routeTableId;
     }
 
-    static void updateMainRouteTableForNat(AmazonEC2Client client, String vpcId, String natInstanceId) {
+    static void updateMainRouteTableForNat(AmazonEC2Client client, InstanceEvents events, String vpcId, String natInstanceId) {
         System.out.print("\nAdding NAT to route table");
         RouteTable mainRouteTable = client.describeRouteTables(
                 new DescribeRouteTablesRequest()
@@ -69,26 +69,12 @@ public class NewCreateRouteTables {
         if (natRoute.isPresent())
             return;
 
-        String status = null;
-        long startTime = System.currentTimeMillis();
-        while (!"running".equals(status) && (System.currentTimeMillis() - startTime < 60000)) {
-            List<InstanceStatus> instanceStatuses = client.describeInstanceStatus(
-                    new DescribeInstanceStatusRequest()
-                            .withInstanceIds(natInstanceId))
-                    .getInstanceStatuses();
-
-            if (instanceStatuses.size() > 0) {
-                status = instanceStatuses.get(0)
-                        .getInstanceState()
-                        .getName();
-            }
-            pause(1000);
-        }
-
-        client.createRoute(
+        events.awaitState(client, Collections.singletonList(natInstanceId), InstanceStateName.Running.toString(), 1000, 60000);
+
+        Retries.run(() -> client.createRoute(
                 new CreateRouteRequest()
                         .withRouteTableId(mainRouteTable.getRouteTableId())
                         .withDestinationCidrBlock("0.0.0.0/0")
-                        .withInstanceId(natInstanceId));
+                        .withInstanceId(natInstanceId)));
     }
 }
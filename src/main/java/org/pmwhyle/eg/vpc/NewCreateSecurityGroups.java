@@ -10,6 +10,7 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -17,7 +18,12 @@ import java.util.List;
 class NewCreateSecurityGroups {
     private static final String IP_CHECK_URL = "http://checkip.amazonaws.com/";
 
-    static String getPublicSecurityGroup(AmazonEC2Client client, String vpcId, Tag... tags) {
+    /**
+     * The group for the bastion, and the registry mirror if there is one,
+     * letting in SSH from here, and web traffic - and pulls from the mirror,
+     * if asked for - from the VPC.
+     */
+    static String getPublicSecurityGroup(AmazonEC2Client client, String vpcId, boolean registryMirror, Tag... tags) {
         System.out.print("\nCreating public security group");
         List<AuthorizeSecurityGroupIngressRequest> ingressRequests = sshIngress(localIp() + "/32");
         ingressRequests.add(new AuthorizeSecurityGroupIngressRequest()
@@ -30,7 +36,16 @@ class NewCreateSecurityGroups {
                 .withFromPort(443)
                 .withToPort(443)
                 .withIpProtocol("tcp"));
-        return getSecurityGroup(client, vpcId, "public-access", ingressRequests, tags);
+        if (!registryMirror)
+            return getSecurityGroup(client, vpcId, "public-access", ingressRequests, Collections.emptyList(), tags);
+
+        AuthorizeSecurityGroupIngressRequest mirrorIngress = new AuthorizeSecurityGroupIngressRequest()
+                .withCidrIp("10.2.2.0/26")
+                .withFromPort(RegistryMirror.PORT)
+                .withToPort(RegistryMirror.PORT)
+                .withIpProtocol("tcp");
+        ingressRequests.add(mirrorIngress);
+        return getSecurityGroup(client, vpcId, "public-access", ingressRequests, Collections.singletonList(mirrorIngress), tags);
     }
 
     static String getPrivateSecurityGroup(AmazonEC2Client client, String vpcId, Tag... tags) {
@@ -41,7 +56,44 @@ class NewCreateSecurityGroups {
                 .getVpcs()
                 .get(0)
                 .getCidrBlock();
-        return getSecurityGroup(client, vpcId, "private-access", sshIngress(cidr), tags);
+        return getSecurityGroup(client, vpcId, "private-access", sshIngress(cidr), Collections.emptyList(), tags);
+    }
+
+    /**
+     * The group for the load balancer, open to HTTP from anywhere.
+     */
+    static String getLoadBalancerSecurityGroup(AmazonEC2Client client, String vpcId, Tag... tags) {
+        System.out.print("\nCreating load balancer security group");
+        List<AuthorizeSecurityGroupIngressRequest> ingressRequests = new ArrayList<>();
+        ingressRequests.add(new AuthorizeSecurityGroupIngressRequest()
+                .withCidrIp("0.0.0.0/0")
+                .withFromPort(80)
+                .withToPort(80)
+                .withIpProtocol("tcp"));
+        return getSecurityGroup(client, vpcId, "load-balancer", ingressRequests, Collections.emptyList(), tags);
+    }
+
+    /**
+     * Let members of one group reach the given ports of another, if not
+     * already.
+     */
+    static void allowFromGroup(AmazonEC2Client client, String groupId, String sourceGroupId, int fromPort, int toPort) {
+        boolean allowed = client.describeSecurityGroups(new DescribeSecurityGroupsRequest().withGroupIds(groupId))
+                .getSecurityGroups()
+                .stream()
+                .flatMap(group -> group.getIpPermissions().stream())
+                .filter(permission -> Integer.valueOf(fromPort).equals(permission.getFromPort()))
+                .flatMap(permission -> permission.getUserIdGroupPairs().stream())
+                .anyMatch(pair -> sourceGroupId.equals(pair.getGroupId()));
+        if (!allowed)
+            Retries.run(() -> client.authorizeSecurityGroupIngress(
+                    new AuthorizeSecurityGroupIngressRequest()
+                            .withGroupId(groupId)
+                            .withIpPermissions(new IpPermission()
+                                    .withIpProtocol("tcp")
+                                    .withFromPort(fromPort)
+                                    .withToPort(toPort)
+                                    .withUserIdGroupPairs(new UserIdGroupPair().withGroupId(sourceGroupId)))));
     }
 
     private static List<AuthorizeSecurityGroupIngressRequest> sshIngress(String cidr) {
@@ -55,22 +107,34 @@ class NewCreateSecurityGroups {
     }
 
 
-    private static String getSecurityGroup(AmazonEC2Client client, String vpcId, String name, List<AuthorizeSecurityGroupIngressRequest> ingressRequests, Tag... tags) {
+    /**
+     * @param added rules that an existing group may have been created
+     *              without, added to it if missing
+     */
+    private static String getSecurityGroup(AmazonEC2Client client, String vpcId, String name, List<AuthorizeSecurityGroupIngressRequest> ingressRequests,
+                                           List<AuthorizeSecurityGroupIngressRequest> added, Tag... tags) {
 
         List<SecurityGroup> existing = getExistingSecurityGroups(client, vpcId, tags);
 
-        if (existing.size() == 1)
-            return existing.get(0).getGroupId();
+        if (existing.size() == 1) {
+            SecurityGroup group = existing.get(0);
+            added.stream()
+                    .filter(ingressRequest -> group.getIpPermissions().stream()
+                            .noneMatch(permission -> ingressRequest.getFromPort().equals(permission.getFromPort())
+                                    && ingressRequest.getIpProtocol().equals(permission.getIpProtocol())))
+                    .forEach(ingressRequest ->
+                            Retries.run(() -> client.authorizeSecurityGroupIngress(ingressRequest.withGroupId(group.getGroupId()))));
+            return group.getGroupId();
+        }
 
         String groupId = client.createSecurityGroup(
                 new CreateSecurityGroupRequest(
                         name, "For accessing resources from a single public IP Address")
-                        .withVpcId(vpcId)).getGroupId();
+                        .withVpcId(vpcId)
+                        .withTagSpecifications(ClientTokens.tagSpecification("security-group", tags))).getGroupId();  // found by tag on a re-run
 
         ingressRequests.forEach(ingressRequest ->
-                client.authorizeSecurityGroupIngress(ingressRequest.withGroupId(groupId)));
-
-        CreateVpc.tagResources(client, groupId, tags);
+                Retries.run(() -> client.authorizeSecurityGroupIngress(ingressRequest.withGroupId(groupId))));
 
         return groupId;
     }
@@ -86,6 +150,10 @@ class NewCreateSecurityGroups {
     }
 
     private static String localIp() {
+        return ApiRecording.local("local-ip", NewCreateSecurityGroups::checkIp);
+    }
+
+    private static String checkIp() {
         String ip;
         URL url;
         try {
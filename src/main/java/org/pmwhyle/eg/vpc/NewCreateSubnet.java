@@ -5,24 +5,141 @@ import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
+ * The VPC's subnets, a /28 each: the public one holding the bastion/NAT
+ * instance, and private ones for the ECS instances - the first in the NAT's
+ * availability zone, the rest in the next zones, so that ECS instances can
+ * reach the NAT without crossing zones. Zones are taken in the order of
+ * their zone ids, which are the same in every account, starting with
+ * --nat-az, by name or id, if given.
+ * <p>
+ * VPCs created before subnets were tagged with their role have a subnet in
+ * each zone, and whichever the public route table is associated with holds
+ * the NAT; those are tagged with the roles they already have.
  */
 class NewCreateSubnet {
 
-    static Map<String, String> getSubnetId(AmazonEC2Client client, String vpcId, Tag tag) {
+    private static final List<String> CIDR_BLOCKS = Arrays.asList("10.2.2.0/28", "10.2.2.16/28", "10.2.2.32/28", "10.2.2.48/28");
+
+    static SubnetLayout getSubnetLayout(AmazonEC2Client client, String vpcId, Optional<String> natZone, Tag tag) {
         System.out.print("\nCreating subnets");
-        Map<String, String> subnetsByZone = new HashMap<>();
-        List<String> cidrBlocks = Arrays.asList("10.2.2.0/28", "10.2.2.16/28", "10.2.2.32/28", "10.2.2.48/28");
-        List<AvailabilityZone> availabilityZones = client.describeAvailabilityZones().getAvailabilityZones();
-        for (int i = 0; i < availabilityZones.size(); i++) {
-            String zoneName = availabilityZones.get(i).getZoneName();
-            subnetsByZone.put(zoneName, createSubnetFor(client, vpcId, zoneName, cidrBlocks.get(i), tag));
+        List<AvailabilityZone> zones = client.describeAvailabilityZones().getAvailabilityZones();
+        List<Subnet> existing = getExistingSubnets(client, vpcId, tag);
+
+        if (!existing.isEmpty() && existing.stream().noneMatch(subnet -> SubnetLayout.roleOf(subnet).isPresent()))
+            return adoptLayout(client, vpcId, existing, zones, tag);
+
+        Optional<Subnet> existingPublic = existing.stream()
+                .filter(subnet -> SubnetLayout.roleOf(subnet).equals(Optional.of(SubnetLayout.PUBLIC)))
+                .findFirst();
+        Optional<Subnet> firstPrivate = existing.stream()
+                .filter(subnet -> SubnetLayout.rankOf(subnet).equals(Optional.of(1)))
+                .findFirst();
+        if (existingPublic.isPresent() && firstPrivate.isPresent()
+                && !existingPublic.get().getAvailabilityZone().equals(firstPrivate.get().getAvailabilityZone()))
+            return SubnetLayout.of(existing);  // adopted, one subnet per zone
+
+        List<AvailabilityZone> ordered = orderedZones(zones);
+        String natZoneName = existingPublic.map(Subnet::getAvailabilityZone)
+                .orElseGet(() -> natZone.map(zone -> zoneNamed(ordered, zone)).orElse(ordered.get(0).getZoneName()));
+        natZone.filter(zone -> !natZoneName.equals(zoneNamed(ordered, zone)))
+                .ifPresent(zone -> System.err.print("\nThe NAT is already in " + natZoneName + ", not " + zone + " - delete and create again to move it"));
+
+        List<String> zoneNames = new ArrayList<>();
+        zoneNames.add(natZoneName);
+        ordered.stream()
+                .map(AvailabilityZone::getZoneName)
+                .filter(zone -> !zone.equals(natZoneName))
+                .forEach(zoneNames::add);
+
+        String publicSubnet = createSubnetFor(client, vpcId, natZoneName, CIDR_BLOCKS.get(0), tag, SubnetLayout.publicRole());
+        Map<String, String> zonesBySubnet = new LinkedHashMap<>();
+        zonesBySubnet.put(publicSubnet, natZoneName);
+        List<String> privateSubnets = new ArrayList<>();
+        for (int i = 0; i < zoneNames.size() && i + 1 < CIDR_BLOCKS.size(); i++) {
+            String subnet = createSubnetFor(client, vpcId, zoneNames.get(i), CIDR_BLOCKS.get(i + 1), tag, SubnetLayout.privateRole(i + 1));
+            zonesBySubnet.put(subnet, zoneNames.get(i));
+            privateSubnets.add(subnet);
         }
-        return subnetsByZone;
+        return new SubnetLayout(publicSubnet, privateSubnets, zonesBySubnet);
+    }
+
+    /**
+     * Available zones, in the order of their ids.
+     */
+    static List<AvailabilityZone> orderedZones(List<AvailabilityZone> zones) {
+        return zones.stream()
+                .filter(zone -> zone.getState() == null || "available".equals(zone.getState()))
+                .filter(zone -> zone.getZoneType() == null || "availability-zone".equals(zone.getZoneType()))
+                .sorted(Comparator.comparing(zone -> zone.getZoneId() == null ? zone.getZoneName() : zone.getZoneId()))
+                .collect(Collectors.toList());
+    }
+
+    private static String zoneNamed(List<AvailabilityZone> zones, String nameOrId) {
+        return zones.stream()
+                .filter(zone -> nameOrId.equals(zone.getZoneName()) || nameOrId.equals(zone.getZoneId()))
+                .map(AvailabilityZone::getZoneName)
+                .findFirst()
+                .orElseThrow(() -> new Options.BadOptionException("nat-az", nameOrId));
+    }
+
+    /**
+     * Tag a VPC's subnets, made before they were tagged with their role, with
+     * the roles they already have: the public one is whichever the public
+     * route table is associated with or, before that was made, whichever the
+     * map of subnets by zone they were made with would have given first.
+     */
+    private static SubnetLayout adoptLayout(AmazonEC2Client client, String vpcId, List<Subnet> subnets, List<AvailabilityZone> zones, Tag tag) {
+        Map<String, String> subnetsByZone = new HashMap<>();
+        zones.stream()
+                .map(AvailabilityZone::getZoneName)
+                .forEach(zone -> subnets.stream()
+                        .filter(subnet -> zone.equals(subnet.getAvailabilityZone()))
+                        .findFirst()
+                        .ifPresent(subnet -> subnetsByZone.put(zone, subnet.getSubnetId())));
+
+        List<String> associated = client.describeRouteTables(new DescribeRouteTablesRequest()
+                .withFilters(CreateVpc.getFiltersForTags(tag, CreateVpc.PUBLIC_TAG)))
+                .getRouteTables()
+                .stream()
+                .flatMap(rt -> rt.getAssociations().stream())
+                .map(RouteTableAssociation::getSubnetId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        String publicSubnet = subnetsByZone.values().stream()
+                .filter(associated::contains)
+                .findFirst()
+                .orElse(subnetsByZone.values().iterator().next());
+        List<String> privateSubnets = subnetsByZone.values().stream()
+                .filter(subnet -> !subnet.equals(publicSubnet))
+                .collect(Collectors.toList());
+
+        System.out.print("\nTagging the roles of the subnets in " + vpcId);
+        CreateVpc.tagResources(client, publicSubnet, SubnetLayout.publicRole());  // written with the run's other tags, when it ends
+        for (int i = 0; i < privateSubnets.size(); i++)
+            CreateVpc.tagResources(client, privateSubnets.get(i), SubnetLayout.privateRole(i + 1));
+
+        Map<String, String> zonesBySubnet = subnets.stream()
+                .collect(Collectors.toMap(Subnet::getSubnetId, Subnet::getAvailabilityZone));
+        return new SubnetLayout(publicSubnet, privateSubnets, zonesBySubnet);
     }
 
-    private static String createSubnetFor(AmazonEC2Client client, String vpcId, String zoneName, String cidrBlock, Tag tag) {
+    /**
+     * The VPC's own subnets, not the load balancer's.
+     */
+    private static List<Subnet> getExistingSubnets(AmazonEC2Client client, String vpcId, Tag tag) {
+        return client.describeSubnets(
+                new DescribeSubnetsRequest()
+                        .withFilters(
+                                CreateVpc.getFilterForTag(tag),
+                                new Filter("vpc-id").withValues(vpcId),
+                                new Filter("cidrBlock").withValues(CIDR_BLOCKS)
+                        )).getSubnets();
+    }
+
+    static String createSubnetFor(AmazonEC2Client client, String vpcId, String zoneName, String cidrBlock, Tag tag, Tag role) {
 
         List<Subnet> existing = getExistingSubnet(client, zoneName, cidrBlock, vpcId, tag);
 
@@ -35,14 +152,12 @@ class NewCreateSubnet {
                     new CreateSubnetRequest()
                             .withVpcId(vpcId)
                             .withAvailabilityZone(zoneName)
-                            .withCidrBlock(cidrBlock));
+                            .withCidrBlock(cidrBlock)
+                            .withTagSpecifications(ClientTokens.tagSpecification("subnet", tag, role)));
         } catch (AmazonServiceException ase) {
             throw new ConflictingSubnetTagIdExpection(cidrBlock, vpcId, ase);
         }
-        String subnetId = result.getSubnet().getSubnetId();
-        CreateVpc.tagResources(client, subnetId, tag);
-
-        return subnetId;
+        return result.getSubnet().getSubnetId();
     }
 
     private static List<Subnet> getExistingSubnet(AmazonEC2Client client, String zoneName, String cidrBlock, String vpcId, Tag tag) {
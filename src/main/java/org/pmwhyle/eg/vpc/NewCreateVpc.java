@@ -3,12 +3,19 @@ package org.pmwhyle.eg.vpc;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
 
+import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  */
 class NewCreateVpc {
 
+    /**
+     * The id's VPC, creating it if there isn't one. Called holding the id's
+     * lease, so no other run can be creating one at the same time.
+     */
     static String createVpc(AmazonEC2Client client, Tag id) {
         System.out.print("\nCreating VPC with CIDR 10.2.20/26");
         String cidrBlock = "10.2.2.0/26";
@@ -20,11 +27,35 @@ class NewCreateVpc {
         if (existing.size() != 0)
             throw new ConflictingVpcTagIdExpection(existing, id, cidrBlock);
 
-        CreateVpcResult result = client.createVpc(new CreateVpcRequest(cidrBlock));
-        String vpcId = result.getVpc().getVpcId();
-        CreateVpc.tagResources(client, id, vpcId);
+        return client.createVpc(
+                new CreateVpcRequest(cidrBlock)
+                        .withTagSpecifications(ClientTokens.tagSpecification("vpc", id, ClientTokens.TOKENS_TAG)))  // everything else is found through the VPC
+                .getVpc()
+                .getVpcId();
+    }
+
+    static Optional<String> getExistingVpcId(AmazonEC2Client client, Tag id) {
+        List<Vpc> existing = getExistingVpc(client, id);
+        return existing.stream()
+                .map(Vpc::getVpcId)
+                .min(Comparator.naturalOrder());
+    }
 
-        return vpcId;
+    static List<Tag> getTags(AmazonEC2Client client, String vpcId) {
+        return client.describeVpcs(new DescribeVpcsRequest().withVpcIds(vpcId))
+                .getVpcs()
+                .stream()
+                .flatMap(vpc -> vpc.getTags().stream())
+                .collect(Collectors.toList());
+    }
+
+    static boolean isTagged(AmazonEC2Client client, String vpcId, Tag tag) {
+        return client.describeVpcs(
+                new DescribeVpcsRequest()
+                        .withVpcIds(vpcId)
+                        .withFilters(CreateVpc.getFilterForTag(tag)))
+                .getVpcs()
+                .size() == 1;
     }
 
     private static List<Vpc> getExistingVpc(AmazonEC2Client client, Tag vpcTag) {
@@ -0,0 +1,100 @@
+package org.pmwhyle.eg.vpc;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The command line, split into the positional arguments (the id and an
+ * optional command) and any options given in the form --name=value, or
+ * just --name for a flag.
+ */
+class Options {
+
+    private final List<String> positional = new ArrayList<>();
+    private final Map<String, String> named = new HashMap<>();
+    private final Set<String> flags = new HashSet<>();
+
+    private Options() {
+    }
+
+    static Options parse(String... args) {
+        Options options = new Options();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    options.named.put(arg.substring(2), "true");
+                    options.flags.add(arg.substring(2));
+                } else {
+                    options.named.put(arg.substring(2, equals), arg.substring(equals + 1));
+                    options.flags.remove(arg.substring(2, equals));
+                }
+            } else {
+                options.positional.add(arg);
+            }
+        }
+        return options;
+    }
+
+    List<String> positional() {
+        return Collections.unmodifiableList(positional);
+    }
+
+    boolean has(String name) {
+        return named.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+        return named.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * The option's value, or the default if it isn't given one - whether
+     * left out, or given as just --name.
+     */
+    String getValue(String name, String defaultValue) {
+        return flags.contains(name) ? defaultValue : get(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        return has(name) ? parse(name, Integer::parseInt) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+        return has(name) ? parse(name, Double::parseDouble) : defaultValue;
+    }
+
+    List<String> getList(String name) {
+        return getList(name, Pattern.compile(""));
+    }
+
+    /**
+     * The comma-separated items of the option, where an item may itself hold
+     * commas: it is split only at commas followed by the start of another
+     * item, such as "KEY=" or "--".
+     */
+    List<String> getList(String name, Pattern itemStart) {
+        if (!has(name))
+            return Collections.emptyList();
+        return Arrays.stream(named.get(name).split(",(?=\\s*" + itemStart.pattern() + ")"))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    private <T> T parse(String name, Function<String, T> parser) {
+        try {
+            return parser.apply(named.get(name));
+        } catch (NumberFormatException e) {
+            throw new BadOptionException(name, named.get(name));
+        }
+    }
+
+    static class BadOptionException extends RuntimeException {
+        BadOptionException(String name, String value) {
+            super("Option --" + name + " has an unusable value '" + value + "'");
+        }
+    }
+}
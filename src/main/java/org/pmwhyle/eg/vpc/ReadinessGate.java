@@ -0,0 +1,109 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.model.ContainerInstance;
+import com.amazonaws.services.ecs.model.ContainerInstanceStatus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Waits until the instances just created are usable: the bastion accepting
+ * SSH connections, and each ECS instance registered in the cluster with a
+ * connected agent. The two are checked in parallel, and the wait ends as
+ * soon as everything is ready, or at the deadline, whichever is first.
+ * A failed poll, such as one throttled, is tried again at the next.
+ */
+class ReadinessGate {
+
+    private static final int SSH_PORT = 22;
+    private static final int SSH_POLL_MILLIS = 2000;
+    private static final int ECS_POLL_MILLIS = 5000;
+
+    /**
+     * @param ecsInstances   the private IP address of each ECS instance, by instance id
+     * @param deadlineMillis how long to wait for, in all, if the step has
+     *                       that long left
+     * @return the time taken for each instance to become ready, in milliseconds,
+     * by IP address, omitting any that weren't ready by the deadline
+     */
+    static Map<String, Long> await(AmazonECSClient ecsClient, String clusterName, Map<String, String> ecsInstances,
+                                   String bastionIp, long deadlineMillis) {
+        System.out.print("\nWaiting for instances to be ready");
+        long start = System.currentTimeMillis();
+        long deadline = start + Math.min(deadlineMillis, Deadline.remainingMillis());
+        Map<String, Long> readiness = new ConcurrentHashMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> ssh = executor.submit(() -> awaitSsh(bastionIp, start, deadline, readiness));
+            Future<?> ecs = executor.submit(() -> awaitEcsAgents(ecsClient, clusterName, ecsInstances, start, deadline, readiness));
+            ssh.get();
+            ecs.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Deadline.CancelledException();
+        } catch (ExecutionException e) {
+            throw new ReadinessCheckFailedException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return readiness;
+    }
+
+    private static void awaitSsh(String bastionIp, long start, long deadline, Map<String, Long> readiness) {
+        while (System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(bastionIp, SSH_PORT), SSH_POLL_MILLIS);
+                readiness.put(bastionIp, System.currentTimeMillis() - start);
+                return;
+            } catch (IOException e) {
+                sleep(SSH_POLL_MILLIS);
+            }
+        }
+    }
+
+    private static void awaitEcsAgents(AmazonECSClient ecsClient, String clusterName, Map<String, String> ecsInstances,
+                                       long start, long deadline, Map<String, Long> readiness) {
+        while (System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted()) {
+            List<ContainerInstance> registered;
+            try {
+                registered = ClusterAutoscaler.getContainerInstances(ecsClient, clusterName);
+            } catch (AmazonClientException e) {
+                System.err.print("\nCouldn't list the cluster's instances, trying again: " + e.getMessage());
+                sleep(ECS_POLL_MILLIS);
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            registered.stream()
+                    .filter(ci -> ContainerInstanceStatus.ACTIVE.toString().equals(ci.getStatus()))
+                    .filter(ci -> Boolean.TRUE.equals(ci.getAgentConnected()))
+                    .map(ContainerInstance::getEc2InstanceId)
+                    .filter(ecsInstances::containsKey)
+                    .forEach(instanceId -> readiness.putIfAbsent(ecsInstances.get(instanceId), now - start));
+            if (ecsInstances.values().stream().allMatch(readiness::containsKey))
+                return;
+            System.out.print(".");
+            sleep(ECS_POLL_MILLIS);
+        }
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ReadinessCheckFailedException extends RuntimeException {
+        ReadinessCheckFailedException(Throwable cause) {
+            super("Checking whether instances were ready failed", cause);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.*;
+import com.google.common.base.Charsets;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A Docker registry, run as a pull-through cache of Docker Hub, that the ECS
+ * instances pull through - so that each image layer crosses the NAT once
+ * for the environment rather than once for each instance. It runs either on
+ * the bastion, as that already has a route out, or on an instance of its
+ * own in the public subnet, and keeps what it has pulled on a volume of its
+ * own, of --mirror-volume-gb.
+ * <p>
+ * Docker only uses a mirror for images from Docker Hub; images from other
+ * registries, such as ECR, are still pulled directly.
+ */
+class RegistryMirror {
+
+    /**
+     * On whichever instance runs the mirror.
+     */
+    static final Tag MIRROR_TAG = new Tag("eg-mirror").withValue("registry");
+
+    /**
+     * On an instance of its own, when not run on the bastion.
+     */
+    static final Tag INSTANCE_TAG = new Tag("eg-access").withValue("registry-mirror");
+
+    static final int PORT = 5000;
+
+    private static final String DEVICE = "/dev/sdf";
+    private static final String MOUNT = "/var/lib/registry-mirror";
+
+    enum Host {
+        BASTION, INSTANCE
+    }
+
+    private final Host host;
+    private final int volumeGb;
+
+    private RegistryMirror(Host host, int volumeGb) {
+        this.host = host;
+        this.volumeGb = volumeGb;
+    }
+
+    /**
+     * The mirror asked for by --registry-mirror=bastion|instance, if any,
+     * with --mirror-volume-gb of storage (20).
+     */
+    static Optional<RegistryMirror> fromOptions(Options options) {
+        if (!options.has("registry-mirror"))
+            return Optional.empty();
+        String host = options.get("registry-mirror", null);
+        int volumeGb = options.getInt("mirror-volume-gb", 20);
+        if (volumeGb < 1)
+            throw new Options.BadOptionException("mirror-volume-gb", String.valueOf(volumeGb));
+        switch (host) {
+            case "bastion":
+                return Optional.of(new RegistryMirror(Host.BASTION, volumeGb));
+            case "instance":
+                return Optional.of(new RegistryMirror(Host.INSTANCE, volumeGb));
+            default:
+                throw new Options.BadOptionException("registry-mirror", host);
+        }
+    }
+
+    boolean isOnBastion() {
+        return host == Host.BASTION;
+    }
+
+    /**
+     * Have the request's instance run the mirror.
+     */
+    RunInstancesRequest runOn(RunInstancesRequest request) {
+        return request
+                .withUserData(Base64.getEncoder().encodeToString(script().getBytes(Charsets.UTF_8)))
+                .withBlockDeviceMappings(new BlockDeviceMapping()
+                        .withDeviceName(DEVICE)
+                        .withEbs(new EbsBlockDevice()
+                                .withVolumeSize(volumeGb)
+                                .withVolumeType(VolumeType.Gp2)
+                                .withDeleteOnTermination(true)));
+    }
+
+    /**
+     * Formats the volume the first time, mounts it, and starts the registry
+     * on it, restarting with Docker.
+     */
+    private static String script() {
+        return "#!/bin/bash\n" +
+                "dev=/dev/xvdf\n" +
+                "[ -b /dev/nvme1n1 ] && dev=/dev/nvme1n1\n" +
+                "blkid $dev || mkfs -t ext4 $dev\n" +
+                "mkdir -p " + MOUNT + "\n" +
+                "mount $dev " + MOUNT + "\n" +
+                "yum install -y docker\n" +
+                "service docker start\n" +
+                "chkconfig docker on\n" +
+                "docker run -d --restart=always --name registry-mirror -p " + PORT + ":5000" +
+                " -v " + MOUNT + ":/var/lib/registry" +
+                " -e REGISTRY_PROXY_REMOTEURL=https://registry-1.docker.io" +
+                " registry:2\n";
+    }
+
+    /**
+     * The mirror's own instance, in the public subnet, launched as the
+     * bastion is.
+     */
+    String createInstance(AmazonEC2Client client, ClientTokens tokens, StorageProfile storage, SubnetLayout subnets, String securityGroup, String keyName, Tag idTag) {
+        System.out.print("\nCreating registry mirror instance");
+        return NewCreateInstances.createPublicInstance(client, tokens, "registry-mirror", storage, Optional.of(this), subnets, securityGroup, keyName, idTag, INSTANCE_TAG)
+                .getInstances()
+                .get(0)
+                .getInstanceId();
+    }
+
+    /**
+     * The private address of the running mirror, if there is one.
+     */
+    static Optional<String> findAddress(AmazonEC2Client client, Tag idTag) {
+        List<Filter> filters = CreateVpc.getFiltersForTags(idTag, MIRROR_TAG);
+        filters.add(new Filter("instance-state-name").withValues("running", "pending"));
+        return client.describeInstances(new DescribeInstancesRequest().withFilters(filters))
+                .getReservations()
+                .stream()
+                .flatMap(r -> r.getInstances().stream())
+                .map(Instance::getPrivateIpAddress)
+                .findFirst();
+    }
+
+    /**
+     * Have Docker on the ECS instances pull from Docker Hub through the
+     * mirror at the address, which serves plain HTTP.
+     */
+    static UserData pointAt(UserData userData, String address) {
+        return userData
+                .withDockerOption("--registry-mirror=http://" + address + ":" + PORT)
+                .withDockerOption("--insecure-registry=" + address + ":" + PORT);
+    }
+}
@@ -0,0 +1,110 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Retries a single AWS call that fails for a reason that will pass on its
+ * own: a resource created moments before that the call can't see yet, the
+ * account being throttled, or a resource still in use by another that is
+ * going away. Each kind of failure has its own short, bounded back off;
+ * anything else, or a failure that outlasts it or the step's share of the
+ * {@link Deadline}, is thrown straight away.
+ */
+class Retries {
+
+    private static final Set<String> THROTTLING_CODES = new HashSet<>(Arrays.asList(
+            "Throttling", "ThrottlingException", "RequestLimitExceeded", "RequestThrottled",
+            "TooManyRequestsException", "SlowDown", "PriorRequestNotComplete"));
+
+    private static final Set<String> DEPENDENCY_CODES = new HashSet<>(Arrays.asList(
+            "DependencyViolation", "DeleteConflict", "ResourceInUse", "ResourceInUseException",
+            "IncorrectState", "IncorrectInstanceState", "ConcurrentModification",
+            "ConcurrentModificationException"));
+
+    enum Kind {
+        /**
+         * Something only just created isn't visible yet to the call.
+         */
+        EVENTUAL_CONSISTENCY(7, 500, 8000),
+        THROTTLING(5, 1000, 16000),
+        /**
+         * A resource is still used by, or changing because of, another.
+         */
+        DEPENDENCY_VIOLATION(10, 2000, 5000),
+        FATAL(1, 0, 0);
+
+        private final int maxAttempts;
+        private final long firstDelayMillis;
+        private final long maxDelayMillis;
+
+        Kind(int maxAttempts, long firstDelayMillis, long maxDelayMillis) {
+            this.maxAttempts = maxAttempts;
+            this.firstDelayMillis = firstDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        boolean retries(int attempt) {
+            return attempt < maxAttempts;
+        }
+
+        /**
+         * How long to wait after the given attempt failed, doubling each
+         * time up to a limit, with some jitter so that parallel callers
+         * don't retry in step.
+         */
+        long delayAfter(int attempt) {
+            long delay = Math.min(maxDelayMillis, firstDelayMillis << Math.min(attempt - 1, 16));
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+    }
+
+    static Kind classify(AmazonServiceException ase) {
+        String code = ase.getErrorCode();
+        if (code == null)
+            return Kind.FATAL;
+        if (code.endsWith(".NotFound") || isProfileNotYetVisible(ase))
+            return Kind.EVENTUAL_CONSISTENCY;
+        if (THROTTLING_CODES.contains(code))
+            return Kind.THROTTLING;
+        if (DEPENDENCY_CODES.contains(code) || code.endsWith(".InUse"))
+            return Kind.DEPENDENCY_VIOLATION;
+        return Kind.FATAL;
+    }
+
+    /**
+     * An instance profile, or the role in it, is a few seconds old and IAM
+     * hasn't yet propagated it to EC2 or to itself.
+     */
+    private static boolean isProfileNotYetVisible(AmazonServiceException ase) {
+        String message = String.valueOf(ase.getErrorMessage());
+        return ("InvalidParameterValue".equals(ase.getErrorCode()) && message.contains("iamInstanceProfile"))
+                || "NoSuchEntity".equals(ase.getErrorCode());
+    }
+
+    static <T> T call(Supplier<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.get();
+            } catch (AmazonServiceException ase) {
+                Kind kind = classify(ase);
+                long delay = kind.delayAfter(attempt);
+                if (!kind.retries(attempt) || delay >= Deadline.remainingMillis())
+                    throw ase;
+                CreateVpc.pause((int) delay);
+            }
+        }
+    }
+
+    static void run(Runnable call) {
+        call(() -> {
+            call.run();
+            return null;
+        });
+    }
+}
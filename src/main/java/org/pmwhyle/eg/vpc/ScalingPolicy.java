@@ -0,0 +1,90 @@
+package org.pmwhyle.eg.vpc;
+
+/**
+ * Decides whether the ECS cluster should grow or shrink, given its current
+ * reservation (the larger of the reserved fractions of CPU and memory).
+ * <p>
+ * Separate high and low water marks, plus a number of consecutive
+ * evaluations required beyond either mark, stop the cluster flapping on
+ * short-lived spikes. After any scaling action there is a cooldown before
+ * scaling out again, and a (normally longer) one before scaling in, so that
+ * new instances have time to register and take tasks.
+ */
+class ScalingPolicy {
+
+    enum Decision {SCALE_OUT, SCALE_IN, HOLD}
+
+    private final double highWater;
+    private final double lowWater;
+    private final int breachesRequired;
+    private final long scaleOutCooldownMillis;
+    private final long scaleInCooldownMillis;
+    private final int minInstances;
+    private final int maxInstances;
+
+    private int highBreaches = 0;
+    private int lowBreaches = 0;
+    private long lastScaledAt = Long.MIN_VALUE;
+
+    ScalingPolicy(double highWater, double lowWater, int breachesRequired,
+                  long scaleOutCooldownMillis, long scaleInCooldownMillis,
+                  int minInstances, int maxInstances) {
+        if (lowWater >= highWater)
+            throw new IllegalArgumentException("Low water mark " + lowWater + " must be below high water mark " + highWater);
+        if (minInstances < 0 || maxInstances < minInstances)
+            throw new IllegalArgumentException("Need 0 <= min (" + minInstances + ") <= max (" + maxInstances + ")");
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+        this.breachesRequired = Math.max(1, breachesRequired);
+        this.scaleOutCooldownMillis = scaleOutCooldownMillis;
+        this.scaleInCooldownMillis = scaleInCooldownMillis;
+        this.minInstances = minInstances;
+        this.maxInstances = maxInstances;
+    }
+
+    static ScalingPolicy from(Options options) {
+        return new ScalingPolicy(
+                options.getDouble("high-water", 0.75),
+                options.getDouble("low-water", 0.30),
+                options.getInt("breaches", 3),
+                options.getInt("scale-out-cooldown", 300) * 1000L,
+                options.getInt("scale-in-cooldown", 900) * 1000L,
+                options.getInt("min", 1),
+                options.getInt("max", 8));
+    }
+
+    /**
+     * @param reservation   the fraction, 0 to 1, of cluster resources reserved by tasks
+     * @param instanceCount the number of ECS instances, including any still starting
+     * @param now           the current time in milliseconds
+     */
+    Decision evaluate(double reservation, int instanceCount, long now) {
+        highBreaches = reservation > highWater ? highBreaches + 1 : 0;
+        lowBreaches = reservation < lowWater ? lowBreaches + 1 : 0;
+
+        if (instanceCount < minInstances)
+            return inCooldown(now, scaleOutCooldownMillis) ? Decision.HOLD : Decision.SCALE_OUT;
+        if (instanceCount > maxInstances)
+            return inCooldown(now, scaleInCooldownMillis) ? Decision.HOLD : Decision.SCALE_IN;
+
+        if (highBreaches >= breachesRequired && instanceCount < maxInstances && !inCooldown(now, scaleOutCooldownMillis))
+            return Decision.SCALE_OUT;
+        if (lowBreaches >= breachesRequired && instanceCount > minInstances && !inCooldown(now, scaleInCooldownMillis))
+            return Decision.SCALE_IN;
+        return Decision.HOLD;
+    }
+
+    /**
+     * Record that a scaling action was taken, starting the cooldowns and
+     * requiring a fresh run of breaches before the next.
+     */
+    void scaled(long now) {
+        lastScaledAt = now;
+        highBreaches = 0;
+        lowBreaches = 0;
+    }
+
+    private boolean inCooldown(long now, long cooldownMillis) {
+        return lastScaledAt != Long.MIN_VALUE && now - lastScaledAt < cooldownMillis;
+    }
+}
@@ -0,0 +1,174 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.InstanceType;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.VolumeType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The EBS volumes an instance is launched with, and the instance type it is
+ * launched as. By default an instance has the image's own volumes - on the
+ * ECS-optimized image a small root volume at /dev/xvda and a gp2 Docker
+ * volume at /dev/xvdcz, which run out of burst balance while images are
+ * extracted and containers write. The other profiles size both volumes up,
+ * as gp3 with its baseline IOPS and throughput, or with the Docker volume
+ * on provisioned IOPS on an EBS-optimized instance.
+ * <p>
+ * Chosen for the ECS instances by --ecs-storage and --ecs-instance-type
+ * (t2.micro), and for the bastion by --bastion-storage, which only sizes
+ * its root volume. A profile the instance type can't deliver is rejected
+ * before anything is launched.
+ */
+class StorageProfile {
+
+    static final String ROOT_DEVICE = "/dev/xvda";
+    static final String DOCKER_DEVICE = "/dev/xvdcz";
+
+    /**
+     * Families that can't be launched EBS-optimized.
+     */
+    private static final List<String> NOT_EBS_OPTIMIZABLE = Arrays.asList("t1", "t2");
+
+    enum Profile {
+        DEFAULT(null, null, false),
+        GP3(new Volume(30, VolumeType.Gp3, 3000, 125), new Volume(100, VolumeType.Gp3, 3000, 250), false),
+        PROVISIONED(new Volume(30, VolumeType.Gp3, 3000, 125), new Volume(100, VolumeType.Io1, 5000, null), true);
+
+        private final Volume root;
+        private final Volume docker;
+        private final boolean ebsOptimized;
+
+        Profile(Volume root, Volume docker, boolean ebsOptimized) {
+            this.root = root;
+            this.docker = docker;
+            this.ebsOptimized = ebsOptimized;
+        }
+    }
+
+    private final Profile profile;
+    private final String instanceType;
+    private final boolean withDocker;
+
+    private StorageProfile(Profile profile, String instanceType, boolean withDocker) {
+        this.profile = profile;
+        this.instanceType = instanceType;
+        this.withDocker = withDocker;
+        validate();
+    }
+
+    /**
+     * The ECS instances', by --ecs-storage=default|gp3|provisioned and
+     * --ecs-instance-type.
+     */
+    static StorageProfile forEcs(Options options) {
+        return new StorageProfile(profileFor(options, "ecs-storage"), instanceTypeFor(options, "ecs-instance-type"), true);
+    }
+
+    /**
+     * The bastion's, by --bastion-storage, as a t2.micro with no Docker
+     * volume.
+     */
+    static StorageProfile forBastion(Options options) {
+        return new StorageProfile(profileFor(options, "bastion-storage"), InstanceType.T2Micro.toString(), false);
+    }
+
+    private static Profile profileFor(Options options, String name) {
+        String value = options.get(name, "default");
+        try {
+            return Profile.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new Options.BadOptionException(name, value);
+        }
+    }
+
+    private static String instanceTypeFor(Options options, String name) {
+        String value = options.get(name, InstanceType.T2Micro.toString());
+        try {
+            return InstanceType.fromValue(value).toString();
+        } catch (IllegalArgumentException e) {
+            throw new Options.BadOptionException(name, value);
+        }
+    }
+
+    /**
+     * Launch the request's instance as this type, with these volumes.
+     */
+    RunInstancesRequest applyTo(RunInstancesRequest request) {
+        request.withInstanceType(instanceType);
+        if (profile.ebsOptimized)
+            request.withEbsOptimized(true);
+        request.withBlockDeviceMappings(mappings().toArray(new BlockDeviceMapping[0]));
+        return request;
+    }
+
+    private List<BlockDeviceMapping> mappings() {
+        List<BlockDeviceMapping> mappings = new ArrayList<>();
+        if (profile.root != null)
+            mappings.add(profile.root.mappingAt(ROOT_DEVICE));
+        if (withDocker && profile.docker != null)
+            mappings.add(profile.docker.mappingAt(DOCKER_DEVICE));
+        return mappings;
+    }
+
+    private void validate() {
+        String family = instanceType.substring(0, instanceType.indexOf('.'));
+        if (profile.ebsOptimized && NOT_EBS_OPTIMIZABLE.contains(family))
+            throw new UnsuitableInstanceTypeException(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(profile.name().toLowerCase()).append(" on ").append(instanceType);
+        if (profile.root == null)
+            return sb.append(", with the image's own volumes").toString();
+        sb.append(", root ").append(profile.root);
+        if (withDocker && profile.docker != null)
+            sb.append(", Docker ").append(profile.docker);
+        if (profile.ebsOptimized)
+            sb.append(", EBS-optimized");
+        return sb.toString();
+    }
+
+    private static class Volume {
+        private final int sizeGb;
+        private final VolumeType type;
+        private final Integer iops;
+        private final Integer throughputMbps;
+
+        Volume(int sizeGb, VolumeType type, Integer iops, Integer throughputMbps) {
+            this.sizeGb = sizeGb;
+            this.type = type;
+            this.iops = iops;
+            this.throughputMbps = throughputMbps;
+        }
+
+        BlockDeviceMapping mappingAt(String device) {
+            return new BlockDeviceMapping()
+                    .withDeviceName(device)
+                    .withEbs(new EbsBlockDevice()
+                            .withVolumeSize(sizeGb)
+                            .withVolumeType(type)
+                            .withIops(iops)
+                            .withThroughput(throughputMbps)
+                            .withDeleteOnTermination(true));
+        }
+
+        @Override
+        public String toString() {
+            return sizeGb + "GiB " + type + (iops == null ? "" : " " + iops + " IOPS") +
+                    (throughputMbps == null ? "" : " " + throughputMbps + "MiB/s");
+        }
+    }
+
+    private static class UnsuitableInstanceTypeException extends RuntimeException {
+        UnsuitableInstanceTypeException(StorageProfile storage) {
+            super("\nStorage profile " + storage.profile.name().toLowerCase() + " needs an EBS-optimized instance, which " +
+                    storage.instanceType + " can't be - choose another profile, or --ecs-instance-type");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.services.ec2.model.Subnet;
+import com.amazonaws.services.ec2.model.Tag;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Which of the VPC's subnets holds the bastion/NAT instance, and which the
+ * ECS instances may use, in the order they should be used - those in the
+ * NAT's availability zone first, so that their traffic out doesn't cross
+ * zones.
+ * <p>
+ * Each subnet is tagged with its role, {@value #ROLE_KEY} of "public" or
+ * "private-n" for the n-th choice for ECS instances, so that every run sees
+ * the layout the first one chose.
+ */
+class SubnetLayout {
+
+    static final String ROLE_KEY = "eg-subnet-role";
+    static final String PUBLIC = "public";
+    static final String PRIVATE_PREFIX = "private-";
+    static final Tag LOAD_BALANCER_ROLE = new Tag(ROLE_KEY).withValue("load-balancer");
+
+    private final String publicSubnet;
+    private final List<String> privateSubnets;
+    private final Map<String, String> zonesBySubnet;
+
+    SubnetLayout(String publicSubnet, List<String> privateSubnets, Map<String, String> zonesBySubnet) {
+        this.publicSubnet = publicSubnet;
+        this.privateSubnets = Collections.unmodifiableList(new ArrayList<>(privateSubnets));
+        this.zonesBySubnet = Collections.unmodifiableMap(new LinkedHashMap<>(zonesBySubnet));
+    }
+
+    /**
+     * The layout the subnets' role tags record.
+     */
+    static SubnetLayout of(List<Subnet> subnets) {
+        Map<String, String> zonesBySubnet = subnets.stream()
+                .collect(Collectors.toMap(Subnet::getSubnetId, Subnet::getAvailabilityZone));
+        String publicSubnet = subnets.stream()
+                .filter(subnet -> roleOf(subnet).equals(Optional.of(PUBLIC)))
+                .map(Subnet::getSubnetId)
+                .findFirst()
+                .orElseThrow(() -> new NoPublicSubnetException(zonesBySubnet.keySet()));
+        List<String> privateSubnets = subnets.stream()
+                .filter(subnet -> rankOf(subnet).isPresent())
+                .sorted(Comparator.comparing(subnet -> rankOf(subnet).get()))
+                .map(Subnet::getSubnetId)
+                .collect(Collectors.toList());
+        return new SubnetLayout(publicSubnet, privateSubnets, zonesBySubnet);
+    }
+
+    static Tag publicRole() {
+        return new Tag(ROLE_KEY).withValue(PUBLIC);
+    }
+
+    /**
+     * The role of the n-th choice, from 1, for ECS instances.
+     */
+    static Tag privateRole(int rank) {
+        return new Tag(ROLE_KEY).withValue(PRIVATE_PREFIX + rank);
+    }
+
+    static Optional<String> roleOf(Subnet subnet) {
+        return subnet.getTags().stream()
+                .filter(tag -> ROLE_KEY.equals(tag.getKey()))
+                .map(Tag::getValue)
+                .findFirst();
+    }
+
+    static Optional<Integer> rankOf(Subnet subnet) {
+        return roleOf(subnet)
+                .filter(role -> role.startsWith(PRIVATE_PREFIX))
+                .map(role -> {
+                    try {
+                        return Integer.valueOf(role.substring(PRIVATE_PREFIX.length()));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * The subnet that holds the bastion/NAT instance.
+     */
+    String publicSubnet() {
+        return publicSubnet;
+    }
+
+    /**
+     * The subnets available for ECS instances, those sharing the NAT's zone
+     * first.
+     */
+    List<String> privateSubnets() {
+        return privateSubnets;
+    }
+
+    String zoneOf(String subnet) {
+        return zonesBySubnet.getOrDefault(subnet, subnet);
+    }
+
+    /**
+     * The zones in use, the NAT's first.
+     */
+    List<String> zones() {
+        List<String> zones = new ArrayList<>();
+        zones.add(zoneOf(publicSubnet));
+        privateSubnets.stream()
+                .map(this::zoneOf)
+                .filter(zone -> !zones.contains(zone))
+                .forEach(zones::add);
+        return zones;
+    }
+
+    @Override
+    public String toString() {
+        return "NAT in " + zoneOf(publicSubnet) + ", ECS instances in " +
+                privateSubnets.stream().map(this::zoneOf).collect(Collectors.joining(", "));
+    }
+
+    private static class NoPublicSubnetException extends RuntimeException {
+        NoPublicSubnetException(Collection<String> subnets) {
+            super("\nNone of the subnets " + subnets + " is tagged " + ROLE_KEY + "=" + PUBLIC +
+                    " - tag the one routed to the internet gateway, or delete and create again");
+        }
+    }
+}
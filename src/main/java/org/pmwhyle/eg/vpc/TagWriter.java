@@ -0,0 +1,150 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes EC2 tags in batches. Requests to tag resources are queued, and
+ * those with the same set of tags coalesced into a single CreateTags call,
+ * sent once the batch is large enough or has waited long enough. Resources
+ * that EC2 doesn't yet know of, having only just been created, and
+ * throttling are retried with the back off {@link Retries} gives them.
+ * <p>
+ * Each request returns a future that completes when its tags have been
+ * written, so callers that rely on the tags being there - to find the
+ * resource again on a re-run - can wait for them; {@link #flush()} waits for
+ * everything queued so far.
+ */
+class TagWriter {
+
+    static final int MAX_BATCH = 200;
+    static final long LINGER_MILLIS = 100;
+
+    private static final Map<AmazonEC2Client, TagWriter> writers = new ConcurrentHashMap<>();
+
+    private final AmazonEC2Client client;
+    private final ScheduledExecutorService executor;
+    private final Map<List<Tag>, Batch> pending = new LinkedHashMap<>();
+    private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+
+    TagWriter(AmazonEC2Client client) {
+        this.client = client;
+        this.executor = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "tag-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The writer for the given client, shared by everything using it.
+     */
+    static TagWriter of(AmazonEC2Client client) {
+        return writers.computeIfAbsent(client, TagWriter::new);
+    }
+
+    /**
+     * Wait for everything queued with any writer to be written.
+     */
+    static void flushAll() {
+        writers.values().forEach(TagWriter::flush);
+    }
+
+    /**
+     * Wait for the tags requested to be written, rethrowing any failure.
+     */
+    static void await(CompletableFuture<Void> tagged) {
+        try {
+            tagged.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    synchronized CompletableFuture<Void> tag(Collection<String> resources, Tag... tags) {
+        List<Tag> key = new ArrayList<>(Arrays.asList(tags));
+        key.sort(Comparator.comparing(Tag::getKey).thenComparing(Tag::getValue));
+
+        Batch batch = pending.get(key);
+        if (batch == null) {
+            batch = new Batch(key);
+            pending.put(key, batch);
+            inFlight.add(batch.done);
+            Batch scheduled = batch;
+            executor.schedule(() -> sendIfPending(scheduled), LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        batch.resources.addAll(resources);
+
+        if (batch.resources.size() >= MAX_BATCH) {
+            pending.remove(key);
+            Batch full = batch;
+            executor.execute(() -> send(full, 1));
+        }
+        return batch.done;
+    }
+
+    /**
+     * Send everything queued now, and wait for it, and anything already
+     * being sent, to be written.
+     */
+    void flush() {
+        List<Batch> toSend;
+        synchronized (this) {
+            toSend = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        toSend.forEach(batch -> executor.execute(() -> send(batch, 1)));
+        await(CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])));
+    }
+
+    private void sendIfPending(Batch batch) {
+        synchronized (this) {
+            if (!pending.remove(batch.tags, batch))
+                return;  // already sent, through being full or flushed
+        }
+        send(batch, 1);
+    }
+
+    private void send(Batch batch, int attempt) {
+        try {
+            client.createTags(
+                    new CreateTagsRequest()
+                            .withResources(batch.resources)
+                            .withTags(batch.tags));
+            complete(batch, null);
+        } catch (AmazonServiceException ase) {
+            Retries.Kind kind = Retries.classify(ase);
+            if (kind.retries(attempt))
+                executor.schedule(() -> send(batch, attempt + 1), kind.delayAfter(attempt), TimeUnit.MILLISECONDS);
+            else
+                complete(batch, ase);
+        } catch (RuntimeException e) {
+            complete(batch, e);
+        }
+    }
+
+    private void complete(Batch batch, RuntimeException e) {
+        inFlight.remove(batch.done);
+        if (e == null)
+            batch.done.complete(null);
+        else
+            batch.done.completeExceptionally(e);
+    }
+
+    private static class Batch {
+        private final List<Tag> tags;
+        private final List<String> resources = new ArrayList<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Batch(List<Tag> tags) {
+            this.tags = tags;
+        }
+    }
+}
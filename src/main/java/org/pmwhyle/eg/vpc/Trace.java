@@ -0,0 +1,239 @@
+package org.pmwhyle.eg.vpc;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Timing of the steps taken in creating or deleting resources, with a child
+ * span for each AWS SDK call and each wait made within a step, written out in
+ * the Chrome trace event format so that it can be opened in chrome://tracing
+ * or Perfetto.
+ * <p>
+ * Each step records the resource id it returned, how many retries and waits
+ * it needed, and whether it was skipped - that is, it made no mutating call,
+ * because what it would have created or deleted already was.
+ * <p>
+ * Tracing is off unless {@link #start()} has been called, in which case the
+ * overhead is just that of calling through.
+ */
+class Trace {
+
+    private static final HandlerContextKey<Span> SPAN_KEY = new HandlerContextKey<>("eg-span");
+    private static final List<String> MUTATING_PREFIXES = Arrays.asList(
+            "Create", "Run", "Attach", "Authorize", "Associate", "Modify", "Add", "Update", "Put", "Register",
+            "Delete", "Detach", "Disassociate", "Terminate", "Remove", "Deregister");
+
+    private static volatile boolean enabled = false;
+    private static long startNanos;
+    private static final List<Span> completed = Collections.synchronizedList(new ArrayList<>());
+    private static final ThreadLocal<Deque<Span>> current = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private Trace() {
+    }
+
+    static void start() {
+        startNanos = System.nanoTime();
+        completed.clear();
+        enabled = true;
+    }
+
+    /**
+     * Add spans for every call made through the client, if tracing.
+     */
+    static <T extends AmazonWebServiceClient> T traced(T client) {
+        if (enabled)
+            client.addRequestHandler(new SdkSpans());
+        return client;
+    }
+
+    static boolean isMutating(String operation) {
+        return MUTATING_PREFIXES.stream().anyMatch(operation::startsWith);
+    }
+
+    /**
+     * Run a step, within its share of the run's {@link Deadline}, recording
+     * its result as the step's resource id.
+     */
+    static <T> T step(String name, Supplier<T> body) {
+        return Deadline.step(name, () -> traced(name, body));
+    }
+
+    private static <T> T traced(String name, Supplier<T> body) {
+        if (!enabled)
+            return body.get();
+        Span span = open(name, "step");
+        try {
+            T result = body.get();
+            if (result != null)
+                span.args.put("resource", String.valueOf(result));
+            return result;
+        } catch (RuntimeException e) {
+            span.args.put("error", e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            span.args.put("skipped", span.mutations == 0);
+            close(span);
+        }
+    }
+
+    static void step(String name, Runnable body) {
+        step(name, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    /**
+     * Time a wait, such as a pause between polls or retries.
+     */
+    static void waiting(Runnable body) {
+        if (!enabled) {
+            body.run();
+            return;
+        }
+        Span parent = current.get().peek();
+        if (parent != null)
+            parent.args.merge("waits", 1, (a, b) -> (Integer) a + (Integer) b);
+        Span span = open("wait", "wait");
+        try {
+            body.run();
+        } finally {
+            close(span);
+        }
+    }
+
+    static void write(File file) {
+        if (!enabled)
+            return;
+        List<Map<String, Object>> events = new ArrayList<>();
+        Set<Long> threads = new TreeSet<>();
+        synchronized (completed) {
+            for (Span span : completed) {
+                Map<String, Object> event = new LinkedHashMap<>();
+                event.put("name", span.name);
+                event.put("cat", span.category);
+                event.put("ph", "X");
+                event.put("ts", (span.start - startNanos) / 1000);
+                event.put("dur", (span.end - span.start) / 1000);
+                event.put("pid", 1);
+                event.put("tid", span.threadId);
+                event.put("args", span.args);
+                events.add(event);
+                if (threads.add(span.threadId))
+                    events.add(threadName(span));
+            }
+        }
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ms");
+        try {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, trace);
+        } catch (IOException e) {
+            throw new UnableToWriteTraceException(file.getAbsolutePath(), e);
+        }
+    }
+
+    private static Map<String, Object> threadName(Span span) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("name", "thread_name");
+        event.put("ph", "M");
+        event.put("pid", 1);
+        event.put("tid", span.threadId);
+        event.put("args", Collections.singletonMap("name", span.threadName));
+        return event;
+    }
+
+    private static Span open(String name, String category) {
+        Span span = new Span(name, category, current.get().peek());
+        current.get().push(span);
+        return span;
+    }
+
+    private static void close(Span span) {
+        span.end = System.nanoTime();
+        current.get().remove(span);
+        completed.add(span);
+    }
+
+    private static class Span {
+        private final String name;
+        private final String category;
+        private final Span parent;
+        private final long start = System.nanoTime();
+        private final long threadId = Thread.currentThread().getId();
+        private final String threadName = Thread.currentThread().getName();
+        private final Map<String, Object> args = Collections.synchronizedMap(new LinkedHashMap<>());
+        private long end;
+        private int mutations = 0;
+
+        Span(String name, String category, Span parent) {
+            this.name = name;
+            this.category = category;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Opens a span before each SDK request and closes it on the response or
+     * error, counting retries and marking enclosing steps as having mutated.
+     */
+    private static class SdkSpans extends RequestHandler2 {
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            String operation = request.getOriginalRequest().getClass().getSimpleName().replaceFirst("Request$", "");
+            Span span = open(request.getServiceName() + "." + operation, "sdk");
+            span.args.put("attempts", 0);
+            if (isMutating(operation))
+                for (Span s = span.parent; s != null; s = s.parent)
+                    s.mutations++;
+            request.addHandlerContext(SPAN_KEY, span);
+        }
+
+        @Override
+        public void beforeAttempt(HandlerBeforeAttemptContext context) {
+            Span span = context.getRequest().getHandlerContext(SPAN_KEY);
+            if (span != null)
+                span.args.merge("attempts", 1, (a, b) -> (Integer) a + (Integer) b);
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response) {
+            end(request, null);
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e) {
+            end(request, e);
+        }
+
+        private void end(Request<?> request, Exception e) {
+            Span span = request.getHandlerContext(SPAN_KEY);
+            if (span == null)
+                return;
+            if (e != null)
+                span.args.put("error", e.getClass().getSimpleName());
+            int retries = Math.max(0, (Integer) span.args.get("attempts") - 1);
+            span.args.put("retries", retries);
+            if (retries > 0 && span.parent != null)
+                span.parent.args.merge("retries", retries, (a, b) -> (Integer) a + (Integer) b);
+            close(span);
+        }
+    }
+
+    private static class UnableToWriteTraceException extends RuntimeException {
+        UnableToWriteTraceException(String absolutePath, IOException e) {
+            super("Couldn't write trace to file " + absolutePath, e);
+        }
+    }
+}
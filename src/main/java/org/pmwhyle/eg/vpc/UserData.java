@@ -0,0 +1,223 @@
+package org.pmwhyle.eg.vpc;
+
+import com.google.common.base.Charsets;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The user data given to ECS instances, composed from the ECS cluster name,
+ * then any named performance profiles in the order given, then overrides
+ * for the particular environment - each layer replacing settings of the
+ * same name from those before.
+ * <p>
+ * ECS agent settings and Docker daemon options are written by a boothook,
+ * so that they are in place before Docker and the agent start; images to be
+ * pre-pulled are pulled by a script run once Docker is up.
+ */
+class UserData {
+
+    static final int MAX_BYTES = 16 * 1024;
+
+    /**
+     * Ends each line added to a system configuration file, so that the
+     * lines can be found and removed again.
+     */
+    static final String MARKER = "# eg-user-data";
+
+    private static final String BOUNDARY = "==EG-BOUNDARY==";
+    private static final Pattern CONFIG_KEY = Pattern.compile("[A-Z][A-Z0-9_]*");
+    private static final Pattern CONFIG_ITEM = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*=");
+    private static final Pattern DOCKER_ITEM = Pattern.compile("--");
+    private static final Pattern SAFE_VALUE = Pattern.compile("[^'\"`$\\\\\\n\\r]*");
+
+    enum Profile {
+        FAST_PULL("fast-pull",
+                new String[]{
+                        "ECS_IMAGE_PULL_BEHAVIOR", "prefer-cached",
+                        "ECS_IMAGE_MINIMUM_CLEANUP_AGE", "24h",
+                        "ECS_NUM_IMAGES_DELETE_PER_CYCLE", "2"},
+                "--max-concurrent-downloads=10"),
+        DENSE_PACKING("dense-packing",
+                new String[]{
+                        "ECS_ENGINE_TASK_CLEANUP_WAIT_DURATION", "15m",
+                        "ECS_IMAGE_CLEANUP_INTERVAL", "15m",
+                        "ECS_TASK_METADATA_RPS_LIMIT", "100,150",
+                        "ECS_CONTAINER_STOP_TIMEOUT", "10s",
+                        "ECS_RESERVED_MEMORY", "128"},
+                "--default-ulimit nofile=65536:65536");
+
+        private final String profileName;
+        private final String[] ecsConfig;
+        private final String[] dockerOptions;
+
+        Profile(String profileName, String[] ecsConfig, String... dockerOptions) {
+            this.profileName = profileName;
+            this.ecsConfig = ecsConfig;
+            this.dockerOptions = dockerOptions;
+        }
+
+        static Profile named(String name) {
+            return Arrays.stream(values())
+                    .filter(p -> p.profileName.equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new Options.BadOptionException("user-data-profile", name));
+        }
+    }
+
+    private final Map<String, String> ecsConfig = new LinkedHashMap<>();
+    private final Map<String, String> dockerOptions = new LinkedHashMap<>();
+    private final Set<String> storageOptions = new LinkedHashSet<>();
+    private final Set<String> prePulls = new LinkedHashSet<>();
+    private final List<String> script = new ArrayList<>();
+    private String encoded;
+
+    UserData(String clusterName) {
+        withEcsConfig("ECS_CLUSTER", clusterName);
+    }
+
+    /**
+     * User data for the cluster, with the profiles and overrides given by
+     * the options --user-data-profile, --ecs-config, --docker-opts,
+     * --docker-storage-opts and --prepull.
+     */
+    static UserData forCluster(String clusterName, Options options) {
+        UserData userData = new UserData(clusterName);
+        options.getList("user-data-profile").forEach(p -> userData.withProfile(Profile.named(p)));
+        options.getList("ecs-config", CONFIG_ITEM).forEach(kv -> {
+            int equals = kv.indexOf('=');
+            if (equals < 1)
+                throw new Options.BadOptionException("ecs-config", kv);
+            userData.withEcsConfig(kv.substring(0, equals), kv.substring(equals + 1));
+        });
+        options.getList("docker-opts", DOCKER_ITEM).forEach(userData::withDockerOption);
+        options.getList("docker-storage-opts").forEach(userData::withStorageOption);
+        options.getList("prepull").forEach(userData::withPrePull);
+        return userData;
+    }
+
+    UserData withProfile(Profile profile) {
+        for (int i = 0; i < profile.ecsConfig.length; i += 2)
+            withEcsConfig(profile.ecsConfig[i], profile.ecsConfig[i + 1]);
+        Arrays.stream(profile.dockerOptions).forEach(this::withDockerOption);
+        return this;
+    }
+
+    UserData withEcsConfig(String key, String value) {
+        if (!CONFIG_KEY.matcher(key).matches())
+            throw new InvalidUserDataException("ECS agent setting name '" + key + "' isn't valid");
+        ecsConfig.put(key, safe(value));
+        return changed();
+    }
+
+    /**
+     * Add a Docker daemon option, replacing any earlier one of the same name
+     * - or, for those such as --default-ulimit whose value is itself a
+     * setting, of the same name and setting.
+     */
+    UserData withDockerOption(String option) {
+        dockerOptions.remove(dockerOptionKey(option));
+        dockerOptions.put(dockerOptionKey(option), safe(option));
+        return changed();
+    }
+
+    private static String dockerOptionKey(String option) {
+        String trimmed = option.trim();
+        int end = trimmed.indexOf('=');
+        int space = trimmed.indexOf(' ');
+        if (end < 0 || (space >= 0 && space < end))
+            end = space;
+        if (end < 0)
+            return trimmed;
+        String value = trimmed.substring(end + 1).trim();
+        int setting = value.indexOf('=');
+        return trimmed.substring(0, end) + (setting > 0 ? " " + value.substring(0, setting) : "");
+    }
+
+    UserData withStorageOption(String option) {
+        storageOptions.add(safe(option));
+        return changed();
+    }
+
+    UserData withPrePull(String image) {
+        prePulls.add(safe(image));
+        return changed();
+    }
+
+    /**
+     * Add a command to be run once Docker is up, after any pre-pulls.
+     */
+    UserData withScript(String command) {
+        script.add(command);
+        return changed();
+    }
+
+    /**
+     * The composed user data, as MIME multi-part text.
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Content-Type: multipart/mixed; boundary=\"").append(BOUNDARY).append("\"\n");
+        sb.append("MIME-Version: 1.0\n");
+
+        part(sb, "text/cloud-boothook");
+        sb.append("#cloud-boothook\n");
+        sb.append("if [ ! -f /var/lib/cloud/eg-configured ]; then\n");
+        sb.append("cat >> /etc/ecs/ecs.config <<'EOF'\n");
+        ecsConfig.forEach((k, v) -> sb.append(k).append('=').append(v).append('\n'));
+        sb.append("EOF\n");
+        if (!dockerOptions.isEmpty())
+            sb.append("echo 'OPTIONS=\"${OPTIONS} ").append(String.join(" ", dockerOptions.values())).append("\" ").append(MARKER).append("' >> /etc/sysconfig/docker\n");
+        storageOptions.forEach(o ->
+                sb.append("echo 'DOCKER_STORAGE_OPTIONS=\"${DOCKER_STORAGE_OPTIONS} --storage-opt ").append(o).append("\" ").append(MARKER).append("' >> /etc/sysconfig/docker-storage\n"));
+        sb.append("touch /var/lib/cloud/eg-configured\n");
+        sb.append("fi\n");
+
+        if (!prePulls.isEmpty() || !script.isEmpty()) {
+            part(sb, "text/x-shellscript");
+            sb.append("#!/bin/bash\n");
+            prePulls.forEach(image -> sb.append("docker pull '").append(image).append("' &\n"));
+            sb.append("wait\n");
+            script.forEach(command -> sb.append(command).append('\n'));
+        }
+
+        sb.append("\n--").append(BOUNDARY).append("--\n");
+        return sb.toString();
+    }
+
+    /**
+     * The user data base64 encoded as RunInstances needs it, encoded just
+     * once however many instances are launched with it.
+     */
+    String encoded() {
+        if (encoded == null) {
+            byte[] bytes = render().getBytes(Charsets.UTF_8);
+            if (bytes.length > MAX_BYTES)
+                throw new InvalidUserDataException("User data is " + bytes.length + " bytes, over the limit of " + MAX_BYTES);
+            encoded = Base64.getEncoder().encodeToString(bytes);
+        }
+        return encoded;
+    }
+
+    private static void part(StringBuilder sb, String contentType) {
+        sb.append("\n--").append(BOUNDARY).append("\n");
+        sb.append("Content-Type: ").append(contentType).append("; charset=\"us-ascii\"\n\n");
+    }
+
+    private UserData changed() {
+        encoded = null;
+        return this;
+    }
+
+    private static String safe(String value) {
+        if (!SAFE_VALUE.matcher(value).matches())
+            throw new InvalidUserDataException("'" + value + "' contains quotes, '$', '\\' or line breaks, which user data can't take");
+        return value;
+    }
+
+    static class InvalidUserDataException extends RuntimeException {
+        InvalidUserDataException(String s) {
+            super(s);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.pmwhyle.eg.vpc;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  */
@@ -9,11 +10,58 @@ public class VpcInfo {
     private final String id;
     private final String publicIp;
     private final List<String> privateIps;
+    private final Map<String, Long> readiness;
+    private final String loadBalancerDns;
+    private final String targetGroupArn;
+    private final String bastionStorage;
+    private final String ecsStorage;
 
     public VpcInfo(String id, String publicIp, List<String> privateIps) {
+        this(id, publicIp, privateIps, null);
+    }
+
+    /**
+     * @param readiness milliseconds taken for each instance, by IP address, to become
+     *                  ready for use, or null if readiness wasn't waited for
+     */
+    public VpcInfo(String id, String publicIp, List<String> privateIps, Map<String, Long> readiness) {
+        this(id, publicIp, privateIps, readiness, null, null, null, null);
+    }
+
+    private VpcInfo(String id, String publicIp, List<String> privateIps, Map<String, Long> readiness,
+                    String loadBalancerDns, String targetGroupArn, String bastionStorage, String ecsStorage) {
         this.id = id;
         this.publicIp = publicIp;
         this.privateIps = privateIps;
+        this.readiness = readiness;
+        this.loadBalancerDns = loadBalancerDns;
+        this.targetGroupArn = targetGroupArn;
+        this.bastionStorage = bastionStorage;
+        this.ecsStorage = ecsStorage;
+    }
+
+    /**
+     * These details, with those of the load balancer in front of the ECS
+     * instances.
+     */
+    public VpcInfo withLoadBalancer(String loadBalancerDns, String targetGroupArn) {
+        return new VpcInfo(id, publicIp, privateIps, readiness, loadBalancerDns, targetGroupArn, bastionStorage, ecsStorage);
+    }
+
+    /**
+     * These details, with the storage profiles the instances were launched
+     * with.
+     */
+    public VpcInfo withStorage(String bastionStorage, String ecsStorage) {
+        return new VpcInfo(id, publicIp, privateIps, readiness, loadBalancerDns, targetGroupArn, bastionStorage, ecsStorage);
+    }
+
+    /**
+     * Whether every instance was found to be ready, or true if not checked.
+     */
+    public boolean isReady() {
+        return readiness == null ||
+                (readiness.containsKey(publicIp) && privateIps.stream().allMatch(readiness::containsKey));
     }
 
     @Override
@@ -21,10 +69,21 @@ public class VpcInfo {
         StringBuilder sb = new StringBuilder("Created a VPC with the following details.");
         sb.append("\n\n\t* Identifier tag, with tag key 'eg-id', is '").append(id).append("'.");
         sb.append("\n\t* Public IP address of bastian instance, through which all ");
-        sb.append("SSH access is made, is ").append("\n\t\t").append(publicIp).append(".");
+        sb.append("SSH access is made, is ").append("\n\t\t").append(publicIp).append(readinessOf(publicIp)).append(".");
         sb.append("\n\t* ").append(privateIps.size()).append(" ECS instances have been created, added to ");
         sb.append("  the cluster named '").append(id).append("'. These instances, accessible through the bastion, have the IP addresses");
-        privateIps.stream().forEach(p -> sb.append("\n\t\t").append(p));
+        privateIps.stream().forEach(p -> sb.append("\n\t\t").append(p).append(readinessOf(p)));
+        if (ecsStorage != null) {
+            sb.append("\n\t* Storage of the bastion is ").append(bastionStorage).append(",");
+            sb.append("\n\t\tand of the ECS instances is ").append(ecsStorage).append(".");
+        }
+        if (loadBalancerDns != null) {
+            sb.append("\n\t* A load balancer in front of the ECS instances forwards HTTP on port 80 from");
+            sb.append("\n\t\thttp://").append(loadBalancerDns).append("/");
+            sb.append("\n\t\tto services registered in its target group, such as with");
+            sb.append("\n\t\taws ecs create-service --cluster ").append(id).append(" --load-balancers");
+            sb.append(" targetGroupArn=").append(targetGroupArn).append(",containerName=<name>,containerPort=<port> ...");
+        }
         sb.append("\n\nTo access the bastion (assuming you're using a Linux desktop), execute the following:");
         sb.append("\n\n\t\tssh-add ~/.ssh/").append(id).append("_id_rsa");
         sb.append("\n\n\tto add the private key generated here to the ssh-agent. You can then access the bastion with");
@@ -32,4 +91,11 @@ public class VpcInfo {
         sb.append("\n\n\tand from there you can access the private ECS instances.");
         return sb.toString();
     }
+
+    private String readinessOf(String ip) {
+        if (readiness == null)
+            return "";
+        Long millis = readiness.get(ip);
+        return millis == null ? " (NOT ready)" : String.format(" (ready after %.1fs)", millis / 1000.0);
+    }
 }
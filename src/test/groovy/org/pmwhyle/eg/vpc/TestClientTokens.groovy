@@ -0,0 +1,30 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.services.ec2.model.Tag
+import spock.lang.Specification
+
+public class TestClientTokens extends Specification {
+
+    def marked = [new Tag('eg-id', 'my-eg'), ClientTokens.TOKENS_TAG]
+
+    def 'Gives a step the same token on every run for the same VPC'() {
+        expect:
+          ClientTokens.forVpc('my-eg', 'vpc-1', marked).forStep('public-instance', 'eu-west-1a') ==
+                  ClientTokens.forVpc('my-eg', 'vpc-1', marked).forStep('public-instance', 'eu-west-1a')
+    }
+
+    def 'Gives a different token for another VPC, step or zone'() {
+        given:
+          def token = ClientTokens.forVpc('my-eg', 'vpc-1', marked).forStep('public-instance', 'eu-west-1a').get()
+        expect:
+          token.length() <= 64
+          ClientTokens.forVpc('my-eg', 'vpc-2', marked).forStep('public-instance', 'eu-west-1a').get() != token
+          ClientTokens.forVpc('my-eg', 'vpc-1', marked).forStep('ecs-instance', 'eu-west-1a').get() != token
+          ClientTokens.forVpc('my-eg', 'vpc-1', marked).forStep('public-instance', 'eu-west-1b').get() != token
+    }
+
+    def 'Gives no token in a VPC created before tokens were used'() {
+        expect:
+          !ClientTokens.forVpc('my-eg', 'vpc-1', [new Tag('eg-id', 'my-eg')]).forStep('public-instance', 'eu-west-1a').isPresent()
+    }
+}
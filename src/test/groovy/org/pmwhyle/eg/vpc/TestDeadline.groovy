@@ -0,0 +1,79 @@
+package org.pmwhyle.eg.vpc
+
+import spock.lang.Specification
+
+import java.util.function.Supplier
+
+public class TestDeadline extends Specification {
+
+    def cleanup() {
+        Thread.interrupted()
+        Deadline.start(Long.MAX_VALUE, [:])
+    }
+
+    def 'Gives each planned step its share of the time left, passing on what it doesn\'t use'() {
+        given:
+          Deadline.start(100000, [first: 1, second: 3])
+        when:
+          def first = Trace.step('first', { Deadline.remainingMillis() } as Supplier)
+          def second = Trace.step('second', { Deadline.remainingMillis() } as Supplier)
+        then:
+          first > 24000 && first <= 25000
+          second > 99000
+    }
+
+    def 'Steps passed over no longer count against those after them'() {
+        given:
+          Deadline.start(100000, [first: 1, skipped: 8, last: 1])
+        when:
+          Trace.step('first', { null } as Supplier)
+          def last = Trace.step('last', { Deadline.remainingMillis() } as Supplier)
+        then:
+          last > 99000
+    }
+
+    def 'Steps not in the plan share the time of the run'() {
+        given:
+          Deadline.start(100000, [first: 1])
+        expect:
+          Trace.step('other', { Deadline.remainingMillis() } as Supplier) > 99000
+    }
+
+    def 'Stops pausing when the step is out of time'() {
+        given:
+          Deadline.start(200, [:])
+          def started = System.currentTimeMillis()
+        when:
+          CreateVpc.pause(5000)
+        then:
+          thrown(Deadline.DeadlineExceededException)
+          System.currentTimeMillis() - started < 2000
+    }
+
+    def 'Propagates an interrupt instead of carrying on'() {
+        given:
+          Thread.currentThread().interrupt()
+        when:
+          CreateVpc.pause(5000)
+        then:
+          thrown(Deadline.CancelledException)
+    }
+
+    def 'Starts no step once out of time, and reports those done'() {
+        given:
+          Deadline.start(100, [:])
+          Trace.step('Creating VPC', { 'vpc-1' } as Supplier)
+          sleep(200)
+        when:
+          Trace.step('Creating subnets', { 'subnet-1' } as Supplier)
+        then:
+          def e = thrown(Deadline.DeadlineExceededException)
+          e.message.contains('Creating VPC: vpc-1')
+          !e.message.contains('subnet-1')
+    }
+
+    def 'Leaves a run without a deadline unlimited'() {
+        expect:
+          Deadline.remainingMillis() == Long.MAX_VALUE
+    }
+}
@@ -0,0 +1,141 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.services.cloudwatchevents.AmazonCloudWatchEvents
+import com.amazonaws.services.cloudwatchevents.model.PutRuleRequest
+import com.amazonaws.services.cloudwatchevents.model.PutRuleResult
+import com.amazonaws.services.cloudwatchevents.model.PutTargetsResult
+import com.amazonaws.services.ec2.AmazonEC2
+import com.amazonaws.services.ec2.model.DescribeInstancesResult
+import com.amazonaws.services.ec2.model.Instance
+import com.amazonaws.services.ec2.model.InstanceState
+import com.amazonaws.services.ec2.model.Reservation
+import com.amazonaws.services.sqs.AmazonSQS
+import com.amazonaws.services.sqs.model.*
+import groovy.json.JsonSlurper
+import spock.lang.Specification
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+public class TestInstanceEvents extends Specification {
+
+    def queued = new LinkedBlockingQueue<Message>()
+    def deleted = [].asSynchronized()
+    def rules = [].asSynchronized()
+
+    AmazonSQS sqs = Stub() {
+        createQueue(_) >> new CreateQueueResult(queueUrl: 'http://localhost:9324/queue/eg-my-id-instance-events')
+        getQueueAttributes(_) >> new GetQueueAttributesResult(attributes: [QueueArn: 'arn:aws:sqs:elasticmq:000000000000:eg-my-id-instance-events'])
+        receiveMessage(_) >> {
+            def message = queued.poll(100, TimeUnit.MILLISECONDS)
+            new ReceiveMessageResult(messages: message ? [message] : [])
+        }
+        deleteMessageBatch(_) >> { DeleteMessageBatchRequest r -> deleted.addAll(r.entries*.receiptHandle); new DeleteMessageBatchResult() }
+    }
+
+    AmazonCloudWatchEvents cloudWatchEvents = Stub() {
+        putRule(_) >> { PutRuleRequest r -> rules << r; new PutRuleResult(ruleArn: 'arn:aws:events:us-east-1:000000000000:rule/eg-my-id-instance-state') }
+        putTargets(_) >> new PutTargetsResult(failedEntryCount: 0)
+    }
+
+    def 'Wakes a waiter as soon as the state change arrives'() {
+        given:
+          def describes = 0
+          AmazonEC2 ec2 = Stub() {
+              describeInstances(_) >> { describes++; described('i-1', 'pending') }
+          }
+          def events = InstanceEvents.subscribe(sqs, cloudWatchEvents, 'my-id')
+          Thread.start {
+              sleep(300)
+              queued << stateChange('i-2', 'running')
+              queued << stateChange('i-1', 'running')
+          }
+        when:
+          def start = System.currentTimeMillis()
+          def running = events.awaitState(ec2, ['i-1'], 'running', 1000, 20000)
+        then:
+          running
+          System.currentTimeMillis() - start < 10000
+          describes == 1
+        cleanup:
+          events.close()
+    }
+
+    def 'Doesn\'t miss an event that arrives while the waiter is checking'() {
+        given:
+          def events = InstanceEvents.subscribe(sqs, cloudWatchEvents, 'my-id')
+          def checks = 0
+          def done = {
+              if (checks++ > 0)
+                  return true
+              queued << stateChange('i-1', 'running')
+              sleep(500)
+              false
+          }
+        when:
+          def start = System.currentTimeMillis()
+          def finished = events.await(['i-1'], done, 100, 5000)
+        then:
+          finished
+          System.currentTimeMillis() - start < 4000
+        cleanup:
+          events.close()
+    }
+
+    def 'Falls back to describing when no event comes'() {
+        given:
+          AmazonEC2 ec2 = Stub() {
+              describeInstances(_) >>> [described('i-1', 'shutting-down'), described('i-1', 'terminated')]
+          }
+          def events = InstanceEvents.polling()
+        expect:
+          events.awaitState(ec2, ['i-1'], 'terminated', 100, 5000)
+    }
+
+    def 'Gives up at the timeout'() {
+        given:
+          AmazonEC2 ec2 = Stub() {
+              describeInstances(_) >> described('i-1', 'pending')
+          }
+        expect:
+          !InstanceEvents.polling().awaitState(ec2, ['i-1'], 'running', 100, 300)
+    }
+
+    def 'Routes state changes only for the instances waited on'() {
+        given:
+          def events = InstanceEvents.subscribe(sqs, cloudWatchEvents, 'my-id')
+        when:
+          events.await(['i-2'], { true }, 100, 5000)
+          events.await(['i-1', 'i-2'], { true }, 100, 5000)
+          events.await(['i-1'], { true }, 100, 5000)
+        then:
+          rules.collect { new JsonSlurper().parseText(it.eventPattern).detail.'instance-id' } == [['i-2'], ['i-1', 'i-2']]
+        cleanup:
+          events.close()
+    }
+
+    def 'Deletes the messages it has read, including events for other instances'() {
+        given:
+          def events = InstanceEvents.subscribe(sqs, cloudWatchEvents, 'my-id')
+          queued << stateChange('i-9', 'stopped')
+        when:
+          events.await(['i-9'], { !deleted.isEmpty() }, 100, 5000)
+        then:
+          deleted == ['i-9-stopped']
+        cleanup:
+          events.close()
+    }
+
+    private static DescribeInstancesResult described(String instanceId, String state) {
+        new DescribeInstancesResult(reservations: [
+                new Reservation(instances: [new Instance(instanceId: instanceId, state: new InstanceState(name: state))])])
+    }
+
+    private static Message stateChange(String instanceId, String state) {
+        new Message(
+                messageId: "$instanceId-$state".toString(),
+                receiptHandle: "$instanceId-$state".toString(),
+                body: """{"detail-type": "${InstanceEvents.STATE_CHANGE}", "source": "aws.ec2",
+                          "detail": {"instance-id": "$instanceId", "state": "$state"}}""".toString())
+    }
+}
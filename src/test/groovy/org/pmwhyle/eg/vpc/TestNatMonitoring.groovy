@@ -0,0 +1,74 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch
+import com.amazonaws.services.cloudwatch.model.*
+import com.amazonaws.services.ec2.AmazonEC2
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest
+import com.amazonaws.services.ec2.model.DescribeInstancesResult
+import com.amazonaws.services.ec2.model.Instance
+import com.amazonaws.services.ec2.model.Reservation
+import spock.lang.Specification
+
+public class TestNatMonitoring extends Specification {
+
+    def 'Puts an alarm on each of the NAT\'s limits, named for the id'() {
+        given:
+          def put = []
+          AmazonCloudWatch cloudWatch = Stub() {
+              putMetricAlarm(_) >> { PutMetricAlarmRequest r -> put << r; new PutMetricAlarmResult() }
+          }
+        when:
+          NatMonitoring.fromOptions(Options.parse('--nat-alarm-mbps=8', '--alarm-topic=arn:aws:sns:topic'))
+                  .putAlarms(cloudWatch, 'my-id', 'i-nat')
+        then:
+          put*.alarmName == NatMonitoring.alarmNamesFor('my-id')
+          put*.alarmName.every { it.startsWith('eg-my-id-nat-') }
+          put.every { it.dimensions == [new Dimension(name: 'InstanceId', value: 'i-nat')] }
+          put.every { it.alarmActions == ['arn:aws:sns:topic'] }
+          put.find { it.metricName == 'NetworkOut' }.threshold == 300000000d
+          put.find { it.metricName == 'CPUCreditBalance' }.comparisonOperator == 'LessThanOrEqualToThreshold'
+    }
+
+    def 'Deletes only the id\'s alarms that exist'() {
+        given:
+          def deleted = []
+          AmazonCloudWatch cloudWatch = Stub() {
+              describeAlarms(_) >> new DescribeAlarmsResult(metricAlarms: [new MetricAlarm(alarmName: 'eg-my-id-nat-network-in')])
+              deleteAlarms(_) >> { DeleteAlarmsRequest r -> deleted.addAll(r.alarmNames); new DeleteAlarmsResult() }
+          }
+        when:
+          NatMonitoring.deleteAlarms(cloudWatch, 'my-id')
+        then:
+          deleted == ['eg-my-id-nat-network-in']
+    }
+
+    def 'Fetches every series for the NAT and ECS instances in one query, across pages'() {
+        given:
+          def requests = []
+          AmazonEC2 ec2 = Stub() {
+              describeInstances(_) >> { DescribeInstancesRequest r ->
+                  def access = r.filters.find { it.name == 'tag:eg-access' }.values[0]
+                  running(access == 'public-access' ? ['i-nat'] : ['i-2', 'i-1'])
+              }
+          }
+          AmazonCloudWatch cloudWatch = Stub() {
+              getMetricData(_) >> { GetMetricDataRequest r ->
+                  requests << r.metricDataQueries.size()
+                  r.nextToken == null
+                          ? new GetMetricDataResult(nextToken: 'more', metricDataResults: [new MetricDataResult(id: 'm0', values: [3.0d], timestamps: [new Date()])])
+                          : new GetMetricDataResult(metricDataResults: [new MetricDataResult(id: 'm0', values: [1.0d], timestamps: [new Date()])])
+              }
+          }
+        when:
+          String stats = NatMonitoring.stats(cloudWatch, ec2, 'my-id', 60)
+        then:
+          requests == [12, 12]
+          stats.contains('NAT i-nat NetworkIn: 3.0 1.0')
+          stats.contains('ECS i-1 CPUUtilization: no data')
+          stats.indexOf('ECS i-1') < stats.indexOf('ECS i-2')
+    }
+
+    private static DescribeInstancesResult running(List<String> instanceIds) {
+        new DescribeInstancesResult(reservations: [new Reservation(instances: instanceIds.collect { new Instance(instanceId: it) })])
+    }
+}
@@ -0,0 +1,22 @@
+package org.pmwhyle.eg.vpc
+
+import spock.lang.Specification
+
+public class TestNewCreateLoadBalancer extends Specification {
+
+    def 'Names fit the limit, and stay distinct for long ids'() {
+        expect:
+          NewCreateLoadBalancer.nameFor('my-id') == 'eg-my-id'
+          NewCreateLoadBalancer.nameFor('a-rather-long-identifier-for-an-env').length() == 32
+          NewCreateLoadBalancer.nameFor('a-rather-long-identifier-for-an-env').startsWith('eg-a-rather-long-identi-')
+          NewCreateLoadBalancer.nameFor('a-rather-long-identifier-for-an-env') != NewCreateLoadBalancer.nameFor('a-rather-long-identifier-for-an-other')
+          !NewCreateLoadBalancer.nameFor('a-rather-long-ident-ifier-for-an-env').contains('--')
+    }
+
+    def 'Names stay distinct for ids that differ only in a trailing hyphen'() {
+        expect:
+          NewCreateLoadBalancer.nameFor('my-id-') ==~ /eg-my-id-[0-9a-f]{8}/
+          NewCreateLoadBalancer.nameFor('my-id-') != NewCreateLoadBalancer.nameFor('my-id')
+          NewCreateLoadBalancer.nameFor('my-id-') != NewCreateLoadBalancer.nameFor('my-id--')
+    }
+}
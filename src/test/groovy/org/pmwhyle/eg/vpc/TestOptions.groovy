@@ -0,0 +1,21 @@
+package org.pmwhyle.eg.vpc
+
+import spock.lang.Specification
+
+public class TestOptions extends Specification {
+
+    def 'A bare flag takes the default value'() {
+        given:
+          def options = Options.parse('my-id', 'create', '--trace', '--record=calls.jsonl.gz')
+        expect:
+          options.has('trace')
+          options.getValue('trace', 'my-id-trace.json') == 'my-id-trace.json'
+          options.getValue('record', 'my-id-calls.jsonl.gz') == 'calls.jsonl.gz'
+          options.getValue('replay', 'my-id-calls.jsonl.gz') == 'my-id-calls.jsonl.gz'
+    }
+
+    def 'A value given after the bare flag is used'() {
+        expect:
+          Options.parse('my-id', '--trace', '--trace=run.json').getValue('trace', 'my-id-trace.json') == 'run.json'
+    }
+}
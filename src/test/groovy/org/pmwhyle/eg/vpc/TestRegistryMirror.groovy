@@ -0,0 +1,26 @@
+package org.pmwhyle.eg.vpc
+
+import spock.lang.Specification
+
+import static org.pmwhyle.eg.vpc.UserData.Profile.FAST_PULL
+
+public class TestRegistryMirror extends Specification {
+
+    def 'Points the Docker daemon at the mirror'() {
+        given:
+          String result = RegistryMirror.pointAt(new UserData('my-id').withProfile(FAST_PULL), '10.2.2.5').render()
+        expect:
+          result.contains('--max-concurrent-downloads=10 --registry-mirror=http://10.2.2.5:5000 --insecure-registry=10.2.2.5:5000')
+    }
+
+    def 'Options are checked'() {
+        when:
+          RegistryMirror.fromOptions(Options.parse('my-id', '--registry-mirror=elsewhere'))
+        then:
+          thrown(Options.BadOptionException)
+        expect:
+          RegistryMirror.fromOptions(Options.parse('my-id', '--registry-mirror=bastion')).get().isOnBastion()
+          !RegistryMirror.fromOptions(Options.parse('my-id', '--registry-mirror=instance')).get().isOnBastion()
+          !RegistryMirror.fromOptions(Options.parse('my-id')).isPresent()
+    }
+}
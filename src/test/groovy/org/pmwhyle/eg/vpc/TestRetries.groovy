@@ -0,0 +1,66 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.AmazonServiceException
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static org.pmwhyle.eg.vpc.Retries.Kind.*
+
+public class TestRetries extends Specification {
+
+    @Unroll
+    def 'Classifies #errorCode as #kind'() {
+        expect:
+          Retries.classify(failure(errorCode, message)) == kind
+        where:
+          errorCode                  | message                                                    || kind
+          'InvalidGroup.NotFound'    | 'The security group does not exist'                        || EVENTUAL_CONSISTENCY
+          'InvalidRouteTableID.NotFound' | 'The route table does not exist'                       || EVENTUAL_CONSISTENCY
+          'InvalidParameterValue'    | 'Value for parameter iamInstanceProfile.arn is invalid.'   || EVENTUAL_CONSISTENCY
+          'NoSuchEntity'             | 'The role cannot be found'                                 || EVENTUAL_CONSISTENCY
+          'RequestLimitExceeded'     | 'Request limit exceeded.'                                  || THROTTLING
+          'Throttling'               | 'Rate exceeded'                                            || THROTTLING
+          'DependencyViolation'      | 'The vpc has dependencies'                                 || DEPENDENCY_VIOLATION
+          'InvalidPlacementGroup.InUse' | 'The placement group is in use'                        || DEPENDENCY_VIOLATION
+          'InvalidParameterValue'    | 'Invalid value for parameter cidrBlock'                    || FATAL
+          'UnauthorizedOperation'    | 'You are not authorized'                                   || FATAL
+          null                       | 'Connection reset'                                         || FATAL
+    }
+
+    def 'Retries a call until it stops failing'() {
+        given:
+          def failures = [failure('InvalidGroup.NotFound', 'not yet')]
+        when:
+          def result = Retries.call {
+              if (failures)
+                  throw failures.remove(0)
+              'done'
+          }
+        then:
+          result == 'done'
+    }
+
+    def 'Throws a fatal failure without retrying'() {
+        given:
+          def calls = 0
+        when:
+          Retries.run { calls++; throw failure('UnauthorizedOperation', 'no') }
+        then:
+          thrown(AmazonServiceException)
+          calls == 1
+    }
+
+    def 'Gives up once the attempts for the kind of failure are used'() {
+        expect:
+          EVENTUAL_CONSISTENCY.retries(6)
+          !EVENTUAL_CONSISTENCY.retries(7)
+          !FATAL.retries(1)
+          (1..10).every { EVENTUAL_CONSISTENCY.delayAfter(it) <= 8000 }
+    }
+
+    private static AmazonServiceException failure(String errorCode, String message) {
+        def ase = new AmazonServiceException(message)
+        ase.errorCode = errorCode
+        ase
+    }
+}
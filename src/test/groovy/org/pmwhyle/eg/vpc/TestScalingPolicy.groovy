@@ -0,0 +1,46 @@
+package org.pmwhyle.eg.vpc
+
+import spock.lang.Specification
+
+import static org.pmwhyle.eg.vpc.ScalingPolicy.Decision.*
+
+public class TestScalingPolicy extends Specification {
+
+    def policy = new ScalingPolicy(0.75, 0.30, 2, 1000, 5000, 1, 3)
+
+    def 'Scales out only after consecutive breaches of the high water mark'() {
+        expect:
+          policy.evaluate(0.9, 1, 0) == HOLD
+          policy.evaluate(0.5, 1, 10) == HOLD
+          policy.evaluate(0.9, 1, 20) == HOLD
+          policy.evaluate(0.9, 1, 30) == SCALE_OUT
+    }
+
+    def 'Holds between the water marks'() {
+        expect:
+          (1..5).every { policy.evaluate(0.5, 2, it) == HOLD }
+    }
+
+    def 'Cooldowns follow a scaling action'() {
+        given:
+          policy.evaluate(0.9, 1, 0)
+          policy.evaluate(0.9, 1, 10)
+          policy.scaled(10)
+        expect:
+          policy.evaluate(0.9, 2, 500) == HOLD
+          policy.evaluate(0.9, 2, 900) == HOLD
+          policy.evaluate(0.9, 2, 1100) == SCALE_OUT
+          policy.evaluate(0.1, 2, 1200) == HOLD
+          policy.evaluate(0.1, 2, 1300) == HOLD
+          policy.evaluate(0.1, 2, 5100) == SCALE_IN
+    }
+
+    def 'Respects the instance limits'() {
+        expect:
+          policy.evaluate(0.9, 3, 0) == HOLD
+          policy.evaluate(0.9, 3, 10) == HOLD
+          policy.evaluate(0.0, 0, 20) == SCALE_OUT
+          policy.evaluate(0.1, 1, 30) == HOLD
+          policy.evaluate(0.1, 1, 40) == HOLD
+    }
+}
@@ -0,0 +1,39 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.services.ec2.model.RunInstancesRequest
+import spock.lang.Specification
+
+public class TestStorageProfile extends Specification {
+
+    def 'Describes the profile chosen'() {
+        given:
+          def ecs = StorageProfile.forEcs(Options.parse('--ecs-storage=provisioned', '--ecs-instance-type=m5.large'))
+          def bastion = StorageProfile.forBastion(Options.parse())
+        expect:
+          bastion.toString() == 'default on t2.micro, with the image\'s own volumes'
+          ecs.toString() == 'provisioned on m5.large, root 30GiB gp3 3000 IOPS 125MiB/s, Docker 100GiB io1 5000 IOPS, EBS-optimized'
+    }
+
+    def 'Maps the root and Docker volumes, and needs an instance type that can deliver them'() {
+        when:
+          def request = StorageProfile.forEcs(Options.parse('--ecs-storage=gp3', '--ecs-instance-type=t3.medium'))
+                  .applyTo(new RunInstancesRequest())
+        then:
+          request.instanceType == 't3.medium'
+          request.ebsOptimized == null
+          request.blockDeviceMappings*.deviceName == [StorageProfile.ROOT_DEVICE, StorageProfile.DOCKER_DEVICE]
+          request.blockDeviceMappings*.ebs*.volumeType == ['gp3', 'gp3']
+          request.blockDeviceMappings.every { it.ebs.deleteOnTermination }
+          StorageProfile.forBastion(Options.parse('--bastion-storage=gp3')).applyTo(new RunInstancesRequest())
+                  .blockDeviceMappings*.deviceName == [StorageProfile.ROOT_DEVICE]
+          StorageProfile.forEcs(Options.parse()).applyTo(new RunInstancesRequest()).blockDeviceMappings.isEmpty()
+        when:
+          StorageProfile.forEcs(Options.parse('--ecs-storage=provisioned'))
+        then:
+          thrown(RuntimeException)
+        when:
+          StorageProfile.forEcs(Options.parse('--ecs-storage=fast'))
+        then:
+          thrown(Options.BadOptionException)
+    }
+}
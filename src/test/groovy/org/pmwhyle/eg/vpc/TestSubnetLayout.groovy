@@ -0,0 +1,53 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.services.ec2.model.AvailabilityZone
+import com.amazonaws.services.ec2.model.Subnet
+import com.amazonaws.services.ec2.model.Tag
+import spock.lang.Specification
+
+public class TestSubnetLayout extends Specification {
+
+    def 'Reads the layout back from the role tags, ECS subnets in rank order'() {
+        given:
+          def subnets = [
+                  subnet('subnet-c', 'eu-west-1c', 'private-2'),
+                  subnet('subnet-a1', 'eu-west-1a', 'private-1'),
+                  subnet('subnet-a0', 'eu-west-1a', 'public'),
+                  subnet('subnet-b', 'eu-west-1b', 'private-3'),
+          ]
+        when:
+          def layout = SubnetLayout.of(subnets)
+        then:
+          layout.publicSubnet() == 'subnet-a0'
+          layout.privateSubnets() == ['subnet-a1', 'subnet-c', 'subnet-b']
+          layout.zoneOf('subnet-c') == 'eu-west-1c'
+          layout.zones() == ['eu-west-1a', 'eu-west-1c', 'eu-west-1b']
+    }
+
+    def 'Needs a subnet tagged as public'() {
+        when:
+          SubnetLayout.of([subnet('subnet-a1', 'eu-west-1a', 'private-1')])
+        then:
+          thrown(RuntimeException)
+    }
+
+    def 'Orders the available zones by zone id, not name'() {
+        given:
+          def zones = [
+                  zone('eu-west-1a', 'euw1-az3', 'available'),
+                  zone('eu-west-1b', 'euw1-az1', 'available'),
+                  zone('eu-west-1c', 'euw1-az2', 'impaired'),
+                  zone('eu-west-1d', 'euw1-az2', 'available'),
+          ]
+        expect:
+          NewCreateSubnet.orderedZones(zones)*.zoneName == ['eu-west-1b', 'eu-west-1d', 'eu-west-1a']
+    }
+
+    private static Subnet subnet(String id, String zone, String role) {
+        new Subnet(subnetId: id, availabilityZone: zone, tags: [new Tag('eg-id', 'my-id'), new Tag(SubnetLayout.ROLE_KEY, role)])
+    }
+
+    private static AvailabilityZone zone(String name, String id, String state) {
+        new AvailabilityZone(zoneName: name, zoneId: id, state: state, zoneType: 'availability-zone')
+    }
+}
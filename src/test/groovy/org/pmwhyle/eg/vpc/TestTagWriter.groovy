@@ -0,0 +1,82 @@
+package org.pmwhyle.eg.vpc
+
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.services.ec2.AmazonEC2Client
+import com.amazonaws.services.ec2.model.CreateTagsRequest
+import com.amazonaws.services.ec2.model.CreateTagsResult
+import com.amazonaws.services.ec2.model.Tag
+import spock.lang.Specification
+
+public class TestTagWriter extends Specification {
+
+    def idTag = new Tag('eg-id', 'my-id')
+    def publicTag = new Tag('eg-access', 'public-access')
+
+    def 'Coalesces resources with the same tags'() {
+        given:
+          def client = new RecordingClient()
+          TagWriter writer = new TagWriter(client)
+        when:
+          writer.tag(['subnet-1'], idTag)
+          writer.tag(['subnet-2'], idTag)
+          writer.tag(['sg-1'], publicTag, idTag)
+          writer.tag(['rtb-1'], idTag, publicTag)
+          writer.flush()
+        then:
+          client.requests.size() == 2
+          client.requests.find { it.tags == [idTag] }.resources == ['subnet-1', 'subnet-2']
+          client.requests.find { it.tags.size() == 2 }.resources == ['sg-1', 'rtb-1']
+    }
+
+    def 'Sends a batch once it is full'() {
+        given:
+          def client = new RecordingClient()
+          TagWriter writer = new TagWriter(client)
+        when:
+          def tagged = (1..TagWriter.MAX_BATCH + 1).collect { writer.tag(["i-$it".toString()], idTag) }
+          TagWriter.await(tagged.first())
+          writer.flush()
+        then:
+          client.requests*.resources*.size() == [TagWriter.MAX_BATCH, 1]
+    }
+
+    def 'Retries resources not yet visible'() {
+        given:
+          def client = new RecordingClient(failures: [failure('InvalidSubnetID.NotFound'), failure('InvalidSubnetID.NotFound')])
+          TagWriter writer = new TagWriter(client)
+        when:
+          TagWriter.await(writer.tag(['subnet-1'], idTag))
+        then:
+          client.requests.size() == 3
+    }
+
+    def 'Fails the tagging on other errors'() {
+        given:
+          def client = new RecordingClient(failures: [failure('UnauthorizedOperation')])
+          TagWriter writer = new TagWriter(client)
+        when:
+          TagWriter.await(writer.tag(['subnet-1'], idTag))
+        then:
+          thrown(AmazonServiceException)
+          client.requests.size() == 1
+    }
+
+    private static AmazonServiceException failure(String errorCode) {
+        def ase = new AmazonServiceException(errorCode)
+        ase.errorCode = errorCode
+        ase
+    }
+
+    private static class RecordingClient extends AmazonEC2Client {
+        List<CreateTagsRequest> requests = [].asSynchronized()
+        List<AmazonServiceException> failures = []
+
+        @Override
+        CreateTagsResult createTags(CreateTagsRequest request) {
+            requests << request
+            if (failures)
+                throw failures.remove(0)
+            new CreateTagsResult()
+        }
+    }
+}
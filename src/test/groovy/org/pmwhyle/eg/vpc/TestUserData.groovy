@@ -0,0 +1,73 @@
+package org.pmwhyle.eg.vpc
+
+import com.google.common.base.Charsets
+import spock.lang.Specification
+
+import static org.pmwhyle.eg.vpc.UserData.Profile.DENSE_PACKING
+import static org.pmwhyle.eg.vpc.UserData.Profile.FAST_PULL
+
+public class TestUserData extends Specification {
+
+    def 'Cluster only'() {
+        given:
+          String result = new UserData('my-id').render()
+        expect:
+          result.contains('ECS_CLUSTER=my-id\n')
+          !result.contains('/etc/sysconfig/docker')
+          !result.contains('docker pull')
+    }
+
+    def 'Later layers override earlier ones'() {
+        given:
+          String result = UserData.forCluster('my-id', Options.parse('my-id',
+                  '--user-data-profile=fast-pull,dense-packing',
+                  '--ecs-config=ECS_IMAGE_CLEANUP_INTERVAL=1h,ECS_ENABLE_SPOT_INSTANCE_DRAINING=true',
+                  '--prepull=nginx:1.21,redis')).render()
+        expect:
+          result.contains('ECS_IMAGE_PULL_BEHAVIOR=prefer-cached\n')
+          result.contains('ECS_TASK_METADATA_RPS_LIMIT=100,150\n')
+          result.contains('ECS_IMAGE_CLEANUP_INTERVAL=1h\n')
+          !result.contains('ECS_IMAGE_CLEANUP_INTERVAL=15m')
+          result.contains('ECS_ENABLE_SPOT_INSTANCE_DRAINING=true\n')
+          result.contains('--max-concurrent-downloads=10 --default-ulimit nofile=65536:65536')
+          result.contains("docker pull 'nginx:1.21' &")
+          result.contains("docker pull 'redis' &")
+    }
+
+    def 'Override values may hold commas, and override options of the same name'() {
+        given:
+          String result = UserData.forCluster('my-id', Options.parse('my-id',
+                  '--user-data-profile=fast-pull,dense-packing',
+                  '--ecs-config=ECS_TASK_METADATA_RPS_LIMIT=200,300,ECS_RESERVED_MEMORY=256',
+                  '--docker-opts=--max-concurrent-downloads=3,--default-ulimit nproc=1024:2048,--log-opt max-size=10m')).render()
+        expect:
+          result.contains('ECS_TASK_METADATA_RPS_LIMIT=200,300\n')
+          result.contains('ECS_RESERVED_MEMORY=256\n')
+          result.contains('--default-ulimit nofile=65536:65536 --max-concurrent-downloads=3 --default-ulimit nproc=1024:2048 --log-opt max-size=10m')
+          !result.contains('--max-concurrent-downloads=10')
+    }
+
+    def 'Encoded once, and again only when changed'() {
+        given:
+          UserData userData = new UserData('my-id').withProfile(FAST_PULL)
+          String first = userData.encoded()
+        expect:
+          userData.encoded().is(first)
+          new String(Base64.decoder.decode(first), Charsets.UTF_8) == userData.render()
+          !userData.withProfile(DENSE_PACKING).encoded().is(first)
+    }
+
+    def 'Rejects user data that is too large or unsafe'() {
+        when:
+          UserData userData = new UserData('my-id')
+          (1..1000).each { userData.withPrePull("registry.example.com/image-$it:latest") }
+          userData.encoded()
+        then:
+          thrown(UserData.InvalidUserDataException)
+
+        when:
+          new UserData('my-id').withEcsConfig('ECS_RESERVED_MEMORY', '128\nrm -rf /')
+        then:
+          thrown(UserData.InvalidUserDataException)
+    }
+}
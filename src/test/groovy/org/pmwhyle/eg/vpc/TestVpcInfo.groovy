@@ -16,4 +16,36 @@ public class TestVpcInfo extends Specification {
           result containsString('10.2.2.45')
           result containsString('192.168.1.1')
     }
-}
\ No newline at end of file
+
+    def 'Readiness of each instance'() {
+        given:
+          VpcInfo info = new VpcInfo('my-id', '192.168.1.1', ['10.2.2.24', '10.2.2.45'],
+                  ['192.168.1.1': 12300L, '10.2.2.24': 45000L])
+          String result = info.toString()
+        expect:
+          !info.ready
+          result containsString('192.168.1.1 (ready after 12.3s)')
+          result containsString('10.2.2.24 (ready after 45.0s)')
+          result containsString('10.2.2.45 (NOT ready)')
+          new VpcInfo('my-id', '192.168.1.1', ['10.2.2.24'], ['192.168.1.1': 1L, '10.2.2.24': 2L]).ready
+          new VpcInfo('my-id', '192.168.1.1', ['10.2.2.24']).ready
+    }
+
+    def 'Load balancer details'() {
+        given:
+          String result = new VpcInfo('my-id', '192.168.1.1', ['10.2.2.24'])
+                  .withLoadBalancer('eg-my-id-123.eu-west-1.elb.amazonaws.com', 'arn:aws:elasticloadbalancing:tg')
+        expect:
+          result containsString('http://eg-my-id-123.eu-west-1.elb.amazonaws.com/')
+          result containsString('--cluster my-id --load-balancers targetGroupArn=arn:aws:elasticloadbalancing:tg')
+          !new VpcInfo('my-id', '192.168.1.1', ['10.2.2.24']).toString().contains('load balancer')
+    }
+
+    def 'Storage profiles listed'() {
+        given:
+          String result = new VpcInfo('my-id', '192.168.1.1', ['10.2.2.24']).withStorage('default on t2.micro', 'gp3 on t3.medium')
+        expect:
+          result containsString('bastion is default on t2.micro')
+          result containsString('ECS instances is gp3 on t3.medium')
+    }
+}